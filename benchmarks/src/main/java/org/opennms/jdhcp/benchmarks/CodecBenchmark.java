@@ -0,0 +1,90 @@
+package org.opennms.jdhcp.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.jdhcp.DHCPMessage;
+import org.opennms.jdhcp.DHCPMessageTemplate;
+import org.opennms.jdhcp.DHCPPacketFilter;
+import org.opennms.jdhcp.MalformedPacketException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding, decoding and copying whole DHCPMessages, and filtering the
+ * raw packet instead of decoding it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /** DISCOVER is a small client message, ACK a fully populated reply. */
+    @Param({ "DISCOVER", "ACK" })
+    public String kind;
+
+    private DHCPMessage message;
+    private DHCPMessageTemplate template;
+    private byte[] packet;
+    private ByteBuffer buffer;
+    private DHCPPacketFilter filter;
+    private final byte[] chaddr = { 0x00, 0x16, 0x3e, 0x12, 0x34, 0x56 };
+    private int xid;
+
+    @Setup
+    public void setUp() throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        message = "ACK".equals(kind)
+                ? Messages.ack(loopback, DHCPMessage.CLIENT_PORT, 0x12345678)
+                : Messages.discover(loopback, DHCPMessage.SERVER_PORT, 0x12345678);
+        packet = message.externalize();
+        template = new DHCPMessageTemplate(message);
+        buffer = ByteBuffer.wrap(packet);
+        filter = DHCPPacketFilter.and(DHCPPacketFilter.hardware(1, 6), DHCPPacketFilter.magicCookie(),
+                DHCPPacketFilter.chaddr(message.getChaddr(), 6));
+    }
+
+    @Benchmark
+    public byte[] externalize() throws IOException {
+        return message.externalize();
+    }
+
+    @Benchmark
+    public DHCPMessage internalize() throws MalformedPacketException {
+        return new DHCPMessage(packet);
+    }
+
+    @Benchmark
+    public DHCPMessage copy() throws MalformedPacketException {
+        return new DHCPMessage(message);
+    }
+
+    @Benchmark
+    public DHCPMessage copyToDestination() throws MalformedPacketException {
+        return new DHCPMessage(message, message.getDestination(), DHCPMessage.CLIENT_PORT);
+    }
+
+    @Benchmark
+    public DHCPMessage fromTemplate() {
+        return template.newMessage(++xid, (short) 0, chaddr);
+    }
+
+    @Benchmark
+    public boolean filter() {
+        return filter.accept(buffer);
+    }
+}
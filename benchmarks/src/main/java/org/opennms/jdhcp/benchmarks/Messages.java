@@ -0,0 +1,63 @@
+package org.opennms.jdhcp.benchmarks;
+
+import java.net.InetAddress;
+
+import org.opennms.jdhcp.DHCPMessage;
+
+/**
+ * Builds the messages the benchmarks encode and decode, with the option
+ * mixes seen on a real network.
+ */
+final class Messages {
+
+    private Messages() {
+    }
+
+    /**
+     * A client's DISCOVER: message type, client id, requested address,
+     * host name and parameter request list.
+     */
+    static DHCPMessage discover(final InetAddress inDestination, final int inPort, final int inXid) {
+        final DHCPMessage message = header(inDestination, inPort, inXid, (byte) 1);
+        message.setOption(53, new byte[] { DHCPMessage.DISCOVER });
+        message.setOption(61, new byte[] { 1, 0x00, 0x16, 0x3e, 0x12, 0x34, 0x56 });
+        message.setOption(50, new byte[] { 10, 0, 0, 42 });
+        message.setOption(12, "bench-host".getBytes());
+        message.setOption(55, new byte[] { 1, 3, 6, 15, 28, 42, 51, 54, 58, 59, 119 });
+        return message;
+    }
+
+    /**
+     * A server's ACK: everything a client asks for in a parameter request
+     * list, including a domain search list.
+     */
+    static DHCPMessage ack(final InetAddress inDestination, final int inPort, final int inXid) {
+        final DHCPMessage message = header(inDestination, inPort, inXid, (byte) 2);
+        message.setYiaddr(new byte[] { 10, 0, 0, 42 });
+        message.setSiaddr(new byte[] { 10, 0, 0, 1 });
+        message.setOption(53, new byte[] { DHCPMessage.ACK });
+        message.setOption(54, new byte[] { 10, 0, 0, 1 });
+        message.setOption(51, new byte[] { 0, 1, 0x51, (byte) 0x80 });
+        message.setOption(58, new byte[] { 0, 0, (byte) 0xa8, (byte) 0xc0 });
+        message.setOption(59, new byte[] { 0, 1, 0x27, 0x50 });
+        message.setOption(1, new byte[] { (byte) 255, (byte) 255, (byte) 255, 0 });
+        message.setOption(3, new byte[] { 10, 0, 0, 1 });
+        message.setOption(6, new byte[] { 10, 0, 0, 2, 10, 0, 0, 3 });
+        message.setOption(15, "example.org".getBytes());
+        message.setOption(28, new byte[] { 10, 0, 0, (byte) 255 });
+        message.setOption(42, new byte[] { 10, 0, 0, 4 });
+        message.setOption(119, new byte[] { 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'o', 'r', 'g', 0,
+                4, 'c', 'o', 'r', 'p', (byte) 0xc0, 0 });
+        return message;
+    }
+
+    private static DHCPMessage header(final InetAddress inDestination, final int inPort, final int inXid, final byte inOp) {
+        final DHCPMessage message = new DHCPMessage(inDestination, inPort);
+        message.setOp(inOp);
+        message.setHtype((byte) 1);
+        message.setHlen((byte) 6);
+        message.setXid(inXid);
+        message.setChaddr(new byte[] { 0x00, 0x16, 0x3e, 0x12, 0x34, 0x56, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+        return message;
+    }
+}
@@ -0,0 +1,86 @@
+package org.opennms.jdhcp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.jdhcp.DHCPOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Setting, looking up and encoding options, with tables holding few to
+ * many options.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptionsBenchmark {
+
+    /** Number of options in the table. */
+    @Param({ "4", "16", "64" })
+    public int count;
+
+    private DHCPOptions options;
+    private byte[][] values;
+    private byte[] codes;
+
+    @Setup
+    public void setUp() {
+        options = new DHCPOptions();
+        values = new byte[count][];
+        codes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            codes[i] = (byte) code(i);
+            values[i] = new byte[4 + i % 8];
+            options.setOption(codes[i], values[i]);
+        }
+    }
+
+    /**
+     * Spreads the codes over the table, from 1 up to 193, skipping 52,
+     * which the encoder drops, and 53, which it moves to the front, so
+     * every option counted is encoded in order.
+     */
+    private static int code(final int i) {
+        final int code = i * 3 + 1;
+        return code < 52 ? code : code + 3;
+    }
+
+    @Benchmark
+    public void setOption() {
+        for (int i = 0; i < count; i++) {
+            options.setOption(codes[i], values[i]);
+        }
+    }
+
+    @Benchmark
+    public void getOption(final Blackhole bh) {
+        for (int i = 0; i < count; i++) {
+            bh.consume(options.getOption(codes[i]));
+        }
+    }
+
+    @Benchmark
+    public void contains(final Blackhole bh) {
+        for (int i = 0; i < count; i++) {
+            bh.consume(options.contains(codes[i]));
+        }
+    }
+
+    @Benchmark
+    public byte[] externalize() {
+        return options.externalize();
+    }
+}
@@ -0,0 +1,74 @@
+package org.opennms.jdhcp.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.jdhcp.DHCPCompiledMessage;
+import org.opennms.jdhcp.DHCPMessage;
+import org.opennms.jdhcp.DHCPSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A send and receive through two DHCPSockets on the loopback interface,
+ * including encoding, the system calls and decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketBenchmark {
+
+    private DHCPSocket client;
+    private DHCPSocket server;
+    private DHCPMessage request;
+    private DHCPCompiledMessage compiled;
+    private int xid;
+    private DHCPMessage received;
+
+    @Setup
+    public void setUp() throws IOException {
+        client = new DHCPSocket(0);
+        server = new DHCPSocket(0);
+        request = Messages.discover(InetAddress.getLoopbackAddress(), server.getLocalPort(), 0x12345678);
+        received = new DHCPMessage();
+        compiled = new DHCPCompiledMessage(request);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public DHCPMessage roundTrip() throws IOException {
+        client.send(request);
+        if (!server.receive(received)) {
+            throw new IOException("Loopback datagram lost.");
+        }
+        return received;
+    }
+
+    @Benchmark
+    public DHCPMessage compiledRoundTrip() throws IOException {
+        compiled.setXid(++xid);
+        client.send(compiled);
+        if (!server.receive(received)) {
+            throw new IOException("Loopback datagram lost.");
+        }
+        return received;
+    }
+}
@@ -115,11 +115,8 @@ class Client extends Thread {
 	    DHCPMessage offerMessageIn = new DHCPMessage(serverIP, portNum);
 	    offerMessageIn = SendDiscover();
 	    DHCPMessage messageIn = offerMessageIn;
-	    byte [] messageType = new byte[1];
-
 	    while (gSentinel) {
-		messageType = messageIn.getOption(MESSAGE_TYPE);
-		switch (messageType[0]) {
+		switch (messageIn.getMessageType()) {
 		case DHCPMessage.OFFER:
 		    System.out.print(this.getName());
 		    System.out.print(" received a DHCPOFFER for ");
@@ -128,10 +125,7 @@ class Client extends Thread {
 		    messageIn = SendRequest(messageIn);
 		    break;
 		case DHCPMessage.ACK:
-		    byte[] t1 = new byte [4];
-		    byte[] t2 = new byte [4];
-		    t1 = messageIn.getOption(T1_TIME);
-		    t2 = messageIn.getOption(T2_TIME);
+		    long t1 = messageIn.getIntOption(T1_TIME, 0);
 		    System.out.print(this.getName());
 		    System.out.print
 			(" received an DHCPACK and a leasetime.");
@@ -139,9 +133,9 @@ class Client extends Thread {
 		    System.out.print(bytesToString(messageIn.getYiaddr()));
 		    System.out.print("\nGoodnight for ");
 		    //messageIn.printMessage();
-		    System.out.print(1000 * byteToLong(t1));
+		    System.out.print(1000 * t1);
 		    System.out.println(" seconds");
-		    this.sleep(1000 * byteToLong(t1));
+		    this.sleep(1000 * t1);
 		    System.out.print(this.getName());
 		    System.out.println(" sending ReNew Message to server...");
 		    messageIn = ReNew(messageIn);
@@ -278,8 +272,8 @@ class Client extends Thread {
 	    messageOut.setCiaddr(offerMessageIn.getYiaddr()); 
 	    
             int so_timeout = bindSocket.getSoTimeout()/1000;
-            long t1 = byteToLong(offerMessageIn.getOption(T1_TIME));
-            long t2 = byteToLong(offerMessageIn.getOption(T2_TIME));
+            long t1 = offerMessageIn.getIntOption(T1_TIME, 0);
+            long t2 = offerMessageIn.getIntOption(T2_TIME, 0);
 
             int elpstime = 1;
 	   
@@ -323,8 +317,8 @@ class Client extends Thread {
 	   
 	    messageOut.setCiaddr(offerMessageIn.getYiaddr());
             // must set ciaddr
-	    long leaseTime = byteToLong(offerMessageIn.getOption(LEASE_TIME));
-	    long t2 = byteToLong(offerMessageIn.getOption(T2_TIME));
+	    long leaseTime = offerMessageIn.getIntOption(LEASE_TIME, 0);
+	    long t2 = offerMessageIn.getIntOption(T2_TIME, 0);
             int so_timeout = bindSocket.getSoTimeout()/1000;
 	    int elpstime = 1;
            
@@ -380,16 +374,6 @@ class Client extends Thread {
     // start dhcpclient Util functions
     // ------------------------------------------------------------------
 
-    // Converts byte[4] => long
-
-    long byteToLong (byte inB[]) {
-	long ttime = (((char) inB[0] * (256*256*256)) + 
-                      ((char) inB[1]*(256*256)) + 
-                      ((char) inB[2]*(256)) + 
-                      (char) inB[3]);
-        return ttime;
-    }
-    
     // Converts byte[4] => Strings
 
     String bytesToString(byte inB[]) {
@@ -0,0 +1,375 @@
+// Open-loop DHCP load generator written using the JDHCP API.
+//
+// Sends DISCOVER, REQUEST and RELEASE messages at a fixed rate on behalf of
+// many synthetic clients and reports throughput, loss and reply latency for
+// every message type.  The send schedule does not wait for replies: every
+// message has an intended send time, and its latency is measured from that
+// time rather than from when it actually went out, so a stalled server or
+// generator shows up as latency instead of silently lowering the rate
+// (coordinated omission).
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opennms.jdhcp.DHCPChannel;
+import org.opennms.jdhcp.DHCPClient;
+import org.opennms.jdhcp.DHCPEventLoop;
+import org.opennms.jdhcp.DHCPMessage;
+import org.opennms.jdhcp.DHCPMessageListener;
+import org.opennms.jdhcp.LatencyHistogram;
+import org.opennms.jdhcp.RetransmissionPolicy;
+
+public class dhcpstorm {
+
+    static final int[] TYPES = { DHCPMessage.DISCOVER, DHCPMessage.REQUEST, DHCPMessage.RELEASE };
+    static final String[] NAMES = { "DISCOVER", "REQUEST", "RELEASE" };
+
+    // command line settings
+    InetAddress server;
+    int serverPort = DHCPMessage.SERVER_PORT;
+    int localPort = DHCPMessage.CLIENT_PORT;
+    InetAddress giaddr;
+    int rate = 1000;
+    int duration = 10;
+    int clients = 100000;
+    long timeout = 2000;
+    int[] mix = { 2, 2, 1 };
+    boolean standIn;
+
+    // per synthetic client: the address it was offered or leased and the
+    // server that offered it, 0 if none yet
+    AtomicLongArray leases;
+
+    final Stats[] stats = { new Stats(), new Stats(), new Stats() };
+    final LongAdder nakked = new LongAdder();
+    long maxLagNanos;
+
+    public static void main(final String[] args) throws Exception {
+        final dhcpstorm storm = new dhcpstorm();
+        if (!storm.parse(args)) {
+            usage();
+            System.exit(1);
+        }
+        storm.run();
+    }
+
+    static void usage() {
+        System.err.println("Usage: dhcpstorm [options] <server>[:port] | -standin");
+        System.err.println("  -rate <n>          messages per second (1000)");
+        System.err.println("  -duration <s>      seconds to run (10)");
+        System.err.println("  -clients <n>       synthetic client hardware addresses (100000)");
+        System.err.println("  -mix <d,r,x>       DISCOVER,REQUEST,RELEASE weights (2,2,1)");
+        System.err.println("  -timeout <ms>      time after which a reply counts as lost (2000)");
+        System.err.println("  -port <n>          local port to send from and receive on (68)");
+        System.err.println("  -giaddr <addr>     act as a relay agent; the server replies to");
+        System.err.println("                     <addr>, which should be this host, on port 67");
+        System.err.println("  -standin           run against a built-in responder on loopback");
+    }
+
+    boolean parse(final String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("-standin")) {
+                standIn = true;
+                continue;
+            }
+            if (!arg.startsWith("-")) {
+                final int colon = arg.lastIndexOf(':');
+                if (colon > 0 && arg.indexOf(':') == colon) {
+                    server = InetAddress.getByName(arg.substring(0, colon));
+                    serverPort = Integer.parseInt(arg.substring(colon + 1));
+                } else {
+                    server = InetAddress.getByName(arg);
+                }
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                return false;
+            }
+            final String value = args[++i];
+            if (arg.equals("-rate")) {
+                rate = Integer.parseInt(value);
+            } else if (arg.equals("-duration")) {
+                duration = Integer.parseInt(value);
+            } else if (arg.equals("-clients")) {
+                clients = Integer.parseInt(value);
+            } else if (arg.equals("-timeout")) {
+                timeout = Long.parseLong(value);
+            } else if (arg.equals("-port")) {
+                localPort = Integer.parseInt(value);
+            } else if (arg.equals("-giaddr")) {
+                giaddr = InetAddress.getByName(value);
+            } else if (arg.equals("-mix")) {
+                final String[] weights = value.split(",");
+                if (weights.length != 3) {
+                    return false;
+                }
+                for (int w = 0; w < 3; w++) {
+                    mix[w] = Integer.parseInt(weights[w].trim());
+                }
+            } else {
+                return false;
+            }
+        }
+        return (server != null || standIn) && rate > 0 && duration > 0 && clients > 0
+                && mix[0] >= 0 && mix[1] >= 0 && mix[2] >= 0 && mix[0] + mix[1] + mix[2] > 0;
+    }
+
+    void run() throws Exception {
+        leases = new AtomicLongArray(clients);
+        final DHCPEventLoop loop = new DHCPEventLoop();
+        loop.start();
+        DHCPEventLoop standInLoop = null;
+        if (standIn) {
+            standInLoop = new DHCPEventLoop();	// its own thread, like a real server
+            standInLoop.start("dhcpstorm-standin");
+            final DHCPChannel responder = standInLoop.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new StandIn());
+            responder.setReceiveBufferSize(4 << 20);
+            server = InetAddress.getLoopbackAddress();
+            serverPort = responder.getLocalPort();
+            localPort = 0;
+        }
+        final DHCPClient client = new DHCPClient(loop, new InetSocketAddress(localPort));
+        client.getChannel().setReceiveBufferSize(4 << 20);
+        client.setRetransmissionPolicy(RetransmissionPolicy.NONE);	// a lost reply is lost
+
+        System.out.println(String.format(Locale.ROOT, "dhcpstorm: %d msg/s for %d s to %s:%d, %d clients, mix %d,%d,%d",
+                rate, duration, server.getHostAddress(), serverPort, clients, mix[0], mix[1], mix[2]));
+
+        final long total = (long) rate * duration;
+        final long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        final int weights = mix[0] + mix[1] + mix[2];
+        final long start = System.nanoTime();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        for (long n = 0; n < total; n++) {
+            final long intended = start + n * period;
+            long now = System.nanoTime();
+            if (intended > now) {
+                LockSupport.parkNanos(intended - now);
+                now = System.nanoTime();
+            }
+            maxLagNanos = Math.max(maxLagNanos, now - intended);
+
+            final int clientIndex = (int) (n % clients);
+            send(client, kind(n / clients, clientIndex, weights), clientIndex, (int) n, intended);
+
+            if (now >= nextReport) {
+                progress(now - start);
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        final long sendTime = System.nanoTime() - start;
+
+        // wait for the last replies or their timeouts
+        while (client.getPendingCount() > 0) {
+            Thread.sleep(10);
+        }
+        report(sendTime);
+        client.close();
+        loop.close();
+        if (standInLoop != null) {
+            standInLoop.close();
+        }
+    }
+
+    // Clients are visited round robin, and each visit moves a client one
+    // step along its own cycle of the mix: with 2,2,1 every client sends
+    // DISCOVER, DISCOVER, REQUEST, REQUEST, RELEASE in turn, so offers are
+    // requested and leases released.  Clients start the cycle at different
+    // steps, so every pass over the clients, even the first, sends the mix;
+    // the kind never depends on the client count and the weights sharing a
+    // factor.
+    int kind(final long pass, final int clientIndex, final int weights) {
+        final int step = (int) ((pass + clientIndex) % weights);
+        return step < mix[0] ? 0 : step < mix[0] + mix[1] ? 1 : 2;
+    }
+
+    void send(final DHCPClient client, final int kind, final int clientIndex, final int xid, final long intended) {
+        final DHCPMessage message = new DHCPMessage(server, serverPort);
+        message.setOp((byte) 1);
+        message.setHtype((byte) 1);
+        message.setHlen((byte) 6);
+        message.setXid(xid);
+        message.setChaddr(chaddr(clientIndex));
+        if (giaddr != null) {
+            message.setGiaddr(giaddr.getAddress());
+        }
+        message.setMessageType(TYPES[kind]);
+        message.setOption(61, clientId(clientIndex));
+
+        final long lease = leases.get(clientIndex);
+        final int address = (int) lease;
+        final int serverId = (int) (lease >>> 32);
+        switch (TYPES[kind]) {
+        case DHCPMessage.DISCOVER:
+            message.setOption(55, new byte[] { 1, 3, 6, 15, 51, 54 });
+            break;
+        case DHCPMessage.REQUEST:
+            // SELECTING if the client holds an offer, otherwise INIT-REBOOT
+            // for an address it may have had before
+            message.setInet4Option(50, address != 0 ? address : 0x0a000000 | clientIndex & 0xffffff);
+            if (serverId != 0) {
+                message.setInet4Option(54, serverId);
+            }
+            break;
+        case DHCPMessage.RELEASE:
+            if (address != 0) {
+                message.setCiaddr(toBytes(address));
+            }
+            if (serverId != 0) {
+                message.setInet4Option(54, serverId);
+            }
+            leases.set(clientIndex, 0L);
+            stats[kind].sent.increment();
+            sendRelease(client, message);
+            return;
+        default:
+            break;
+        }
+        stats[kind].sent.increment();
+        final CompletableFuture<DHCPMessage> reply = client.send(message, timeout, TimeUnit.MILLISECONDS);
+        reply.whenComplete((response, failure) -> {
+            final Stats s = stats[kind];
+            if (response == null) {
+                s.lost.increment();
+                return;
+            }
+            s.latency.record(System.nanoTime() - intended);
+            if (response.getMessageType() == DHCPMessage.NAK) {
+                nakked.increment();
+                leases.set(clientIndex, 0L);
+            } else {
+                final int id = response.getInet4Option(54, 0);
+                leases.set(clientIndex, (long) id << 32 | toInt(response.getYiaddr()) & 0xffffffffL);
+            }
+        });
+    }
+
+    // a RELEASE gets no reply, so it bypasses the client's transaction table
+    void sendRelease(final DHCPClient client, final DHCPMessage message) {
+        try {
+            client.getChannel().send(message);
+        } catch (final Exception e) {
+            stats[2].lost.increment();
+        }
+    }
+
+    void progress(final long elapsed) {
+        long sent = 0;
+        long replies = 0;
+        long lost = 0;
+        for (final Stats s : stats) {
+            sent += s.sent.sum();
+            replies += s.latency.getCount();
+            lost += s.lost.sum();
+        }
+        System.out.println(String.format(Locale.ROOT, "%6.1fs  sent %d  replies %d  lost %d  lag %.1f ms",
+                elapsed / 1e9, sent, replies, lost, maxLagNanos / 1e6));
+    }
+
+    void report(final long sendTime) {
+        final double seconds = sendTime / 1e9;
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-9s %9s %9s %8s %7s %9s %9s %9s %9s %9s %9s",
+                "type", "sent", "replies", "lost", "loss%", "reply/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (int kind = 0; kind < TYPES.length; kind++) {
+            final Stats s = stats[kind];
+            final long sent = s.sent.sum();
+            if (sent == 0) {
+                continue;
+            }
+            if (TYPES[kind] == DHCPMessage.RELEASE) {	// no reply expected
+                System.out.println(String.format(Locale.ROOT, "%-9s %9d %9s %8d", NAMES[kind], sent, "-", s.lost.sum()));
+                continue;
+            }
+            final LatencyHistogram h = s.latency;
+            System.out.println(String.format(Locale.ROOT, "%-9s %9d %9d %8d %7.2f %9.0f %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    NAMES[kind], sent, h.getCount(), s.lost.sum(), 100.0 * s.lost.sum() / sent, h.getCount() / seconds,
+                    h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(90) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                    h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6));
+        }
+        long sent = 0;
+        for (final Stats s : stats) {
+            sent += s.sent.sum();
+        }
+        System.out.println(String.format(Locale.ROOT, "%nsent %.0f msg/s (target %d), %d NAKs, worst schedule lag %.2f ms",
+                sent / seconds, rate, nakked.sum(), maxLagNanos / 1e6));
+    }
+
+    // locally administered unicast MAC 02:xx:xx:xx:xx:xx from the client number
+    static byte[] chaddr(final int clientIndex) {
+        final byte[] chaddr = new byte[16];
+        chaddr[0] = 0x02;
+        chaddr[2] = (byte) (clientIndex >>> 24);
+        chaddr[3] = (byte) (clientIndex >>> 16);
+        chaddr[4] = (byte) (clientIndex >>> 8);
+        chaddr[5] = (byte) clientIndex;
+        return chaddr;
+    }
+
+    static byte[] clientId(final int clientIndex) {
+        final byte[] id = new byte[7];
+        id[0] = 1;	// htype ethernet
+        System.arraycopy(chaddr(clientIndex), 0, id, 1, 6);
+        return id;
+    }
+
+    static byte[] toBytes(final int address) {
+        return new byte[] { (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address };
+    }
+
+    static int toInt(final byte[] address) {
+        if (address == null || address.length < 4) {
+            return 0;
+        }
+        return (address[0] & 0xff) << 24 | (address[1] & 0xff) << 16 | (address[2] & 0xff) << 8 | address[3] & 0xff;
+    }
+
+    static class Stats {
+        final LongAdder sent = new LongAdder();
+        final LongAdder lost = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    // Answers DISCOVER with OFFER and REQUEST with ACK, handing out
+    // 10.x.x.x addresses derived from the chaddr; just enough of a server to
+    // exercise the generator on one machine.
+    static class StandIn implements DHCPMessageListener {
+        static final int SERVER_ID = 0x0a000001;
+        static final int LEASE_TIME = 3600;
+
+        public void messageReceived(final DHCPChannel channel, final DHCPMessage message, final InetSocketAddress source) {
+            final int type = message.getMessageType();
+            final int replyType;
+            if (type == DHCPMessage.DISCOVER) {
+                replyType = DHCPMessage.OFFER;
+            } else if (type == DHCPMessage.REQUEST) {
+                replyType = DHCPMessage.ACK;
+            } else {
+                return;
+            }
+            try {
+                final DHCPMessage reply = new DHCPMessage(source.getAddress(), source.getPort());
+                final byte[] chaddr = message.getChaddr();
+                reply.setOp((byte) 2);
+                reply.setHtype(message.getHtype());
+                reply.setHlen(message.getHlen());
+                reply.setXid(message.getXid());
+                reply.setChaddr(chaddr);
+                reply.setYiaddr(new byte[] { 10, chaddr[3], chaddr[4], chaddr[5] });
+                reply.setMessageType(replyType);
+                reply.setInet4Option(54, SERVER_ID);
+                reply.setIntOption(51, LEASE_TIME);
+                channel.send(reply);
+            } catch (final Exception e) {
+                // drop it
+            }
+        }
+    }
+}
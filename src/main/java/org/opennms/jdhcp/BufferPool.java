@@ -0,0 +1,81 @@
+package org.opennms.jdhcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * This class is a bounded pool of equally sized receive buffers.
+ * A buffer is leased, filled and decoded, and then released back to the
+ * pool for the next receive.  When the pool is empty lease() allocates a
+ * new buffer, and when it is full release() lets the buffer go, so the
+ * pool never blocks and never holds more than its capacity.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * Creates a pool of heap buffers.
+     * @param inBufferSize size of every buffer in the pool
+     * @param inCapacity largest number of idle buffers kept
+     */
+    public BufferPool(final int inBufferSize, final int inCapacity) {
+        this(inBufferSize, inCapacity, false);
+    }
+
+    /**
+     * Creates a pool of heap or direct buffers.
+     * @param inBufferSize size of every buffer in the pool
+     * @param inCapacity largest number of idle buffers kept
+     * @param inDirect true for direct buffers, false for heap buffers
+     */
+    public BufferPool(final int inBufferSize, final int inCapacity, final boolean inDirect) {
+        if (inBufferSize <= 0 || inCapacity <= 0) {
+            throw new IllegalArgumentException("Buffer size and capacity must be positive.");
+        }
+        bufferSize = inBufferSize;
+        direct = inDirect;
+        buffers = new ArrayBlockingQueue<ByteBuffer>(inCapacity);
+    }
+
+    /**
+     * Leases a cleared buffer from the pool, allocating one if none is idle.
+     * @return a buffer of getBufferSize() bytes
+     */
+    public ByteBuffer lease() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a leased buffer to the pool.  The buffer must not be used
+     * after it has been released.  Buffers of another size or kind are
+     * ignored.
+     * @param buffer the buffer to return
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize && buffer.isDirect() == direct) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /** Returns the size of the buffers in the pool. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Report whether the pool holds direct buffers. */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /** Returns the number of idle buffers in the pool. */
+    public int getIdleCount() {
+        return buffers.size();
+    }
+}
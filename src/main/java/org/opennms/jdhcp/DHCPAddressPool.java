@@ -0,0 +1,463 @@
+package org.opennms.jdhcp;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * This class hands out IPv4 addresses from one or more contiguous ranges
+ * to DHCP clients, identified by their hardware address.  An address is
+ * offered to a client and then leased to it when the client requests it; a
+ * client keeps the same address until it releases it or its lease expires.
+ * Addresses are passed as ints in network order, for example 0x0a000001
+ * for 10.0.0.1.
+ * <p>
+ * Each range is a set of packed bitmaps, one bit per address, with a
+ * summary bitmap marking the words that are full, so finding a free
+ * address looks at one summary word and one bitmap word.  No object is kept
+ * per address: a pool of a million addresses takes about 400 KB, and the
+ * table mapping hardware addresses to their leases is two primitive arrays
+ * that grow with the number of clients.
+ * <p>
+ * Leases expire by generation rather than by timestamp.  Offering,
+ * requesting and renewing an address marks it as renewed; sweep() frees
+ * every bound address that was not renewed since the previous sweep and
+ * starts a new generation.  Calling sweep() once per lease time therefore
+ * frees a lease between one and two lease times after it was last renewed.
+ * <p>
+ * An address a client declines, because it found the address already in
+ * use on the network, is quarantined rather than freed: it is offered to
+ * no one until the second sweep after the decline.
+ * @see DHCPResponder
+ */
+public class DHCPAddressPool {
+    private Range[] ranges = new Range[0];
+    private final LongMap leases = new LongMap();
+    private final LongMap reservations = new LongMap();
+    private final LongMap quarantine = new LongMap();	// 1 << 32 | address -> generation it ends
+    private long generation;
+    private int size;
+    private int used;
+
+    /**
+     * Creates an empty pool; add addresses with addRange().
+     */
+    public DHCPAddressPool() {
+    }
+
+    /**
+     * Creates a pool of the addresses from inFirst to inLast, inclusive.
+     * @param inFirst the lowest address in the pool
+     * @param inLast the highest address in the pool
+     */
+    public DHCPAddressPool(final InetAddress inFirst, final InetAddress inLast) {
+        addRange(inFirst, inLast);
+    }
+
+    /**
+     * Creates a pool of the addresses from inFirst to inLast, inclusive.
+     * @param inFirst the lowest address in the pool
+     * @param inLast the highest address in the pool
+     */
+    public DHCPAddressPool(final int inFirst, final int inLast) {
+        addRange(inFirst, inLast);
+    }
+
+    /**
+     * Adds the addresses from inFirst to inLast, inclusive, to the pool.
+     * @param inFirst the lowest address of the range
+     * @param inLast the highest address of the range
+     * @throws IllegalArgumentException if the range is empty or overlaps
+     *         one already in the pool
+     */
+    public void addRange(final InetAddress inFirst, final InetAddress inLast) {
+        addRange(Inet4Addresses.toInt(inFirst), Inet4Addresses.toInt(inLast));
+    }
+
+    /**
+     * Adds the addresses from inFirst to inLast, inclusive, to the pool.
+     * @param inFirst the lowest address of the range
+     * @param inLast the highest address of the range
+     * @throws IllegalArgumentException if the range is empty or overlaps
+     *         one already in the pool
+     */
+    public synchronized void addRange(final int inFirst, final int inLast) {
+        final long count = (inLast & 0xFFFFFFFFL) - (inFirst & 0xFFFFFFFFL) + 1;
+        if (count <= 0 || count > Integer.MAX_VALUE - size) {
+            throw new IllegalArgumentException("A range's last address must not be below its first.");
+        }
+        for (final Range range : ranges) {
+            if (range.contains(inFirst) || range.contains(inLast) || contains(inFirst, (int) count, range.first)) {
+                throw new IllegalArgumentException("The range overlaps one already in the pool.");
+            }
+        }
+        ranges = Arrays.copyOf(ranges, ranges.length + 1);
+        ranges[ranges.length - 1] = new Range(inFirst, (int) count);
+        size += (int) count;
+    }
+
+    /**
+     * Reserves an address for one client: the client is always offered it,
+     * and no other client gets it.  Reservations do not expire.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     * @param inAddress an address of the pool that is not in use
+     * @throws IllegalArgumentException if the address is not in the pool or
+     *         is already in use
+     */
+    public synchronized void reserve(final byte[] inChaddr, final int inHlen, final int inAddress) {
+        final Range range = rangeOf(inAddress);
+        if (range == null || range.isUsed(inAddress - range.first)) {
+            throw new IllegalArgumentException(Inet4Addresses.toString(inAddress) + " is not a free address of the pool.");
+        }
+        final long client = key(inChaddr, inHlen);
+        release(client);
+        final int previous = (int) reservations.remove(client);
+        if (previous != 0) {
+            final Range old = rangeOf(previous);
+            old.reserved[(previous - old.first) >>> 6] &= ~(1L << (previous - old.first));
+            free(old, previous - old.first);
+        }
+        reservations.put(client, inAddress);
+        range.reserved[(inAddress - range.first) >>> 6] |= 1L << (inAddress - range.first);
+        allocate(range, inAddress - range.first);
+    }
+
+    /**
+     * Picks the address to offer a client: its reservation, else the one
+     * it already holds, else the one it asked for if that is free, else the
+     * lowest free address.  The address is held for the client until it is
+     * released or expires.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     * @param inRequested the address the client asked for, or 0
+     * @return the address, or 0 if the pool is exhausted
+     */
+    public synchronized int offer(final byte[] inChaddr, final int inHlen, final int inRequested) {
+        final long client = key(inChaddr, inHlen);
+        final int reserved = (int) reservations.get(client);
+        if (reserved != 0) {
+            return reserved;
+        }
+        final int bound = (int) leases.get(client);
+        if (bound != 0) {
+            renew(bound);
+            return bound;
+        }
+        int address = 0;
+        final Range requested = rangeOf(inRequested);
+        if (requested != null && !requested.isUsed(inRequested - requested.first)) {
+            allocate(requested, inRequested - requested.first);
+            address = inRequested;
+        } else {
+            for (final Range range : ranges) {
+                final int offset = range.findFree();
+                if (offset >= 0) {
+                    allocate(range, offset);
+                    address = range.first + offset;
+                    break;
+                }
+            }
+        }
+        if (address != 0) {
+            leases.put(client, address);
+            renew(address);
+        }
+        return address;
+    }
+
+    /**
+     * Leases or renews an address for a client that requested it.  The
+     * request is granted if the address is the client's reservation or
+     * lease, or is a free address of the pool; a client that moves to a
+     * free address gives up the one it held.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     * @param inAddress the requested address
+     * @return true to acknowledge the request, false to refuse it
+     */
+    public synchronized boolean request(final byte[] inChaddr, final int inHlen, final int inAddress) {
+        final Range range = rangeOf(inAddress);
+        if (range == null) {
+            return false;
+        }
+        final long client = key(inChaddr, inHlen);
+        final int reserved = (int) reservations.get(client);
+        if (reserved != 0) {
+            return reserved == inAddress;
+        }
+        final int bound = (int) leases.get(client);
+        if (bound != inAddress) {
+            if (range.isUsed(inAddress - range.first)) {
+                return false;
+            }
+            release(client);
+            allocate(range, inAddress - range.first);
+            leases.put(client, inAddress);
+        }
+        renew(inAddress);
+        return true;
+    }
+
+    /**
+     * Returns a client's address to the pool.  Reserved addresses stay
+     * reserved.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     */
+    public synchronized void release(final byte[] inChaddr, final int inHlen) {
+        release(key(inChaddr, inHlen));
+    }
+
+    /**
+     * Takes back the address a client declined and quarantines it.  A
+     * reserved address stays reserved.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     * @return the quarantined address, or 0 if the client held none
+     */
+    public synchronized int decline(final byte[] inChaddr, final int inHlen) {
+        final int bound = (int) leases.remove(key(inChaddr, inHlen));
+        if (bound != 0) {
+            quarantine.put(quarantineKey(bound), generation + 2);
+        }
+        return bound;
+    }
+
+    /**
+     * Quarantines a free address of the pool, as if a client had declined
+     * it, for instance when restoring a journal.
+     * @param inAddress the address
+     * @return false if the address is not in the pool or is in use
+     */
+    public synchronized boolean quarantine(final int inAddress) {
+        final Range range = rangeOf(inAddress);
+        if (range == null || range.isUsed(inAddress - range.first)) {
+            return false;
+        }
+        allocate(range, inAddress - range.first);
+        quarantine.put(quarantineKey(inAddress), generation + 2);
+        return true;
+    }
+
+    /**
+     * Report whether an address is quarantined after a decline.
+     * @param inAddress the address
+     */
+    public synchronized boolean isQuarantined(final int inAddress) {
+        return quarantine.get(quarantineKey(inAddress)) != 0L;
+    }
+
+    /**
+     * Frees every lease that was not offered, requested or renewed since the
+     * previous sweep, and every quarantined address whose quarantine is
+     * over, and starts a new generation.
+     * @return the number of addresses freed
+     */
+    public synchronized int sweep() {
+        int freed = 0;
+        generation++;
+        for (int slot = 0; slot < quarantine.capacity(); slot++) {
+            while (quarantine.keyAt(slot) != 0L && quarantine.valueAt(slot) <= generation) {
+                final int address = (int) quarantine.keyAt(slot);
+                final Range range = rangeOf(address);
+                quarantine.remove(quarantine.keyAt(slot));	// may shift a later entry into this slot
+                free(range, address - range.first);
+                freed++;
+            }
+        }
+        for (int slot = 0; slot < leases.capacity(); slot++) {
+            while (leases.keyAt(slot) != 0L && !isRenewed((int) leases.valueAt(slot))) {
+                final int address = (int) leases.valueAt(slot);
+                final Range range = rangeOf(address);
+                leases.remove(leases.keyAt(slot));	// may shift a later entry into this slot
+                free(range, address - range.first);
+                freed++;
+            }
+        }
+        for (final Range range : ranges) {
+            Arrays.fill(range.renewed, 0L);
+        }
+        return freed;
+    }
+
+    /**
+     * Report whether an address belongs to the pool.
+     * @param inAddress the address
+     */
+    public synchronized boolean contains(final int inAddress) {
+        return rangeOf(inAddress) != null;
+    }
+
+    /**
+     * Report whether an address is offered, leased or reserved.
+     * @param inAddress the address
+     */
+    public synchronized boolean isInUse(final int inAddress) {
+        final Range range = rangeOf(inAddress);
+        return range != null && range.isUsed(inAddress - range.first);
+    }
+
+    /**
+     * Returns the address offered or leased to a client, or reserved for it.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     * @return the address, or 0 if the client holds none
+     */
+    public synchronized int getAddress(final byte[] inChaddr, final int inHlen) {
+        final long client = key(inChaddr, inHlen);
+        final int reserved = (int) reservations.get(client);
+        return reserved != 0 ? reserved : (int) leases.get(client);
+    }
+
+    /** Returns the number of addresses in the pool. */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /** Returns the number of addresses not offered, leased, reserved or quarantined. */
+    public synchronized int getFreeCount() {
+        return size - used;
+    }
+
+    private void release(final long client) {
+        final int bound = (int) leases.remove(client);
+        if (bound != 0) {
+            final Range range = rangeOf(bound);
+            free(range, bound - range.first);
+        }
+    }
+
+    /**
+     * Keys quarantined addresses so that none is zero.
+     */
+    private static long quarantineKey(final int address) {
+        return 1L << 32 | address & 0xFFFFFFFFL;
+    }
+
+    private void allocate(final Range range, final int offset) {
+        range.setUsed(offset);
+        used++;
+    }
+
+    private void free(final Range range, final int offset) {
+        if (!range.isReserved(offset)) {
+            range.clearUsed(offset);
+            used--;
+        }
+    }
+
+    private void renew(final int address) {
+        final Range range = rangeOf(address);
+        range.renewed[(address - range.first) >>> 6] |= 1L << (address - range.first);
+    }
+
+    private boolean isRenewed(final int address) {
+        final Range range = rangeOf(address);
+        final int offset = address - range.first;
+        return (range.renewed[offset >>> 6] & 1L << offset) != 0;
+    }
+
+    private Range rangeOf(final int address) {
+        for (final Range range : ranges) {
+            if (range.contains(address)) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    private static boolean contains(final int first, final int count, final int address) {
+        return ((address - first) & 0xFFFFFFFFL) < count;
+    }
+
+    /**
+     * Reduces a hardware address to a non-zero long.  Addresses of up to
+     * seven octets, which includes every Ethernet address, are packed
+     * exactly with their length; longer ones are hashed.
+     */
+    static long key(final byte[] chaddr, final int hlen) {
+        final int length = Math.max(0, Math.min(hlen, Math.min(16, chaddr.length)));
+        if (length <= 7) {
+            long key = length + 1;
+            for (int i = 0; i < length; i++) {
+                key = key << 8 | chaddr[i] & 0xFF;
+            }
+            return key;
+        }
+        long hash = 0xcbf29ce484222325L;	// FNV-1a
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (chaddr[i] & 0xFF)) * 0x100000001b3L;
+        }
+        return hash | Long.MIN_VALUE;
+    }
+
+    /**
+     * One contiguous range of addresses: a used bit per address, with a
+     * summary bit per word of used bits that is set when the word is full.
+     */
+    private static final class Range {
+        final int first;
+        final int size;
+        final long[] used;
+        final long[] full;
+        final long[] renewed;
+        final long[] reserved;
+
+        Range(final int inFirst, final int inSize) {
+            first = inFirst;
+            size = inSize;
+            final int words = (inSize + 63) >>> 6;
+            used = new long[words];
+            full = new long[(words + 63) >>> 6];
+            renewed = new long[words];
+            reserved = new long[words];
+            // the bits past the end of the range are never free
+            if ((inSize & 63) != 0) {
+                used[words - 1] = -1L << (inSize & 63);
+            }
+            // nor are the summary bits past the last word
+            if ((words & 63) != 0) {
+                full[full.length - 1] = -1L << (words & 63);
+            }
+        }
+
+        boolean contains(final int address) {
+            return DHCPAddressPool.contains(first, size, address);
+        }
+
+        boolean isUsed(final int offset) {
+            return (used[offset >>> 6] & 1L << offset) != 0;
+        }
+
+        boolean isReserved(final int offset) {
+            return (reserved[offset >>> 6] & 1L << offset) != 0;
+        }
+
+        void setUsed(final int offset) {
+            final int word = offset >>> 6;
+            used[word] |= 1L << offset;
+            if (used[word] == -1L) {
+                full[word >>> 6] |= 1L << word;
+            }
+        }
+
+        void clearUsed(final int offset) {
+            final int word = offset >>> 6;
+            used[word] &= ~(1L << offset);
+            full[word >>> 6] &= ~(1L << word);
+        }
+
+        /**
+         * Returns the offset of the lowest free address, or -1 if none is.
+         */
+        int findFree() {
+            for (int summary = 0; summary < full.length; summary++) {
+                if (full[summary] != -1L) {
+                    final int word = (summary << 6) + Long.numberOfTrailingZeros(~full[summary]);
+                    return (word << 6) + Long.numberOfTrailingZeros(~used[word]);
+                }
+            }
+            return -1;
+        }
+    }
+}
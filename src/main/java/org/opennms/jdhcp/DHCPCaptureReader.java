@@ -0,0 +1,544 @@
+package org.opennms.jdhcp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * This class reads the DHCP packets out of a pcap or pcapng capture file,
+ * for example one taken with "tcpdump -w dhcp.pcap port 67 or port 68".
+ * <p>
+ * The file is memory-mapped a window at a time, so captures of several
+ * gigabytes are read at disk speed without being copied onto the heap.
+ * Every frame's link, IPv4 and UDP headers are walked in place, and UDP
+ * datagrams to or from port 67 or 68 are returned as Packets whose payload
+ * is a read-only slice of the mapping.  The slice can be wrapped in a
+ * DHCPMessageView or decoded into a DHCPMessage; it stays valid after the
+ * reader has moved on or been closed.
+ * <p>
+ * Supported link types are Ethernet (with 802.1Q and 802.1ad VLAN tags),
+ * Linux cooked captures (SLL and SLL2), BSD loopback and raw IPv4.  Frames
+ * of any other kind, IPv6, and IPv4 fragments are skipped and counted.  A
+ * record cut short at the end of the file, as left by a capture that was
+ * still being written, ends the capture.
+ * <p>
+ * A reader is a single forward pass: call next() until it returns null, or
+ * use packets() or messages() to get a sequential Stream.
+ * @see DHCPMessageView
+ */
+public class DHCPCaptureReader implements Closeable {
+    /** Default size in bytes of the mapped window. */
+    public static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+    private static final int PCAP_MICROS = 0xA1B2C3D4;
+    private static final int PCAP_NANOS = 0xA1B23C4D;
+    private static final int PCAPNG_SHB = 0x0A0D0D0A;
+    private static final int PCAPNG_BYTE_ORDER = 0x1A2B3C4D;
+    private static final int PCAPNG_IDB = 1;
+    private static final int PCAPNG_OPB = 2;	// obsolete packet block
+    private static final int PCAPNG_SPB = 3;
+    private static final int PCAPNG_EPB = 6;
+
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LOOP = 108;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    private static final int LINKTYPE_IPV4 = 228;
+    private static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    /**
+     * One UDP datagram to or from a DHCP port.
+     */
+    public static final class Packet {
+        private final long frame;
+        private final long timestamp;
+        private final int source;
+        private final int sourcePort;
+        private final int destination;
+        private final int destinationPort;
+        private final ByteBuffer payload;
+        private final boolean truncated;
+
+        Packet(final long inFrame, final long inTimestamp, final int inSource, final int inSourcePort,
+                final int inDestination, final int inDestinationPort, final ByteBuffer inPayload, final boolean inTruncated) {
+            frame = inFrame;
+            timestamp = inTimestamp;
+            source = inSource;
+            sourcePort = inSourcePort;
+            destination = inDestination;
+            destinationPort = inDestinationPort;
+            payload = inPayload;
+            truncated = inTruncated;
+        }
+
+        /** Returns the frame's number in the capture, counting from 1 as Wireshark does. */
+        public long getFrame() {
+            return frame;
+        }
+
+        /** Returns when the frame was captured, in nanoseconds since the epoch. */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** Returns the IPv4 source address. */
+        public InetAddress getSource() {
+            return toAddress(source);
+        }
+
+        /** Returns the UDP source port. */
+        public int getSourcePort() {
+            return sourcePort;
+        }
+
+        /** Returns the IPv4 destination address. */
+        public InetAddress getDestination() {
+            return toAddress(destination);
+        }
+
+        /** Returns the UDP destination port. */
+        public int getDestinationPort() {
+            return destinationPort;
+        }
+
+        /**
+         * Returns the UDP payload, a read-only slice of the capture.
+         * @return a new buffer positioned at the start of the payload
+         */
+        public ByteBuffer getPayload() {
+            return payload.duplicate();
+        }
+
+        /** Returns true if the capture's snapshot length cut the payload short. */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Wraps the payload in a view without decoding it.
+         * @throws MalformedPacketException if the payload is shorter than the BOOTP header
+         */
+        public DHCPMessageView getView() throws MalformedPacketException {
+            return new DHCPMessageView(getPayload());
+        }
+
+        /**
+         * Decodes the payload.  The message's destination and port are the
+         * packet's source, as for a message received on a DHCPSocket.
+         * @throws MalformedPacketException if the payload is not a DHCP message
+         */
+        public DHCPMessage toMessage() throws MalformedPacketException {
+            return new DHCPMessage(getSource(), sourcePort).decodeFrom(getPayload());
+        }
+
+        private static InetAddress toAddress(final int inAddress) {
+            try {
+                return InetAddress.getByAddress(Inet4Addresses.toBytes(inAddress));
+            } catch (final UnknownHostException e) {
+                throw new IllegalStateException(e);	// four bytes are always an address
+            }
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private final boolean pcapng;
+    private ByteBuffer window;		// always big endian
+    private long windowStart;
+    private long offset;			// file offset of the next record or block
+    private boolean swap;			// file fields are little endian
+    private long frame;
+    private long skipped;
+
+    // pcap: one link type and timestamp unit for the whole file
+    private int linkType;
+    private long tsUnit;			// nanoseconds per timestamp unit
+
+    // pcapng: per interface of the current section
+    private final List<long[]> interfaces = new ArrayList<long[]>();	// { linktype, units per second }
+
+    /**
+     * Opens a capture with the default window size.
+     * @param inFile a pcap or pcapng file
+     */
+    public DHCPCaptureReader(final File inFile) throws IOException {
+        this(inFile, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Opens a capture.
+     * @param inFile a pcap or pcapng file
+     * @param inWindowSize bytes of the file mapped at a time
+     * @throws IOException if the file is neither pcap nor pcapng
+     */
+    public DHCPCaptureReader(final File inFile, final int inWindowSize) throws IOException {
+        if (inWindowSize < 4096) {
+            throw new IllegalArgumentException("The window must be at least 4096 bytes.");
+        }
+        file = new RandomAccessFile(inFile, "r");
+        try {
+            channel = file.getChannel();
+            size = channel.size();
+            windowSize = inWindowSize;
+            if (!map(0, 24)) {
+                throw new IOException(inFile + " is too short to be a capture.");
+            }
+            final int magic = window.getInt(0);	// the window starts at the file's start
+            if (magic == PCAPNG_SHB) {
+                pcapng = true;
+            } else {
+                pcapng = false;
+                readPcapHeader(magic);
+                offset = 24;
+            }
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the next DHCP packet of the capture.
+     * @return the packet, or null at the end of the capture
+     */
+    public Packet next() throws IOException {
+        for (;;) {
+            final Packet packet = pcapng ? nextBlock() : nextRecord();
+            if (packet != null || offset >= size) {
+                return packet;
+            }
+        }
+    }
+
+    /**
+     * Returns the rest of the capture as a sequential stream of packets.
+     * An IOException while reading is thrown as an UncheckedIOException.
+     */
+    public Stream<Packet> packets() {
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<Packet>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE) {
+            public boolean tryAdvance(final Consumer<? super Packet> inAction) {
+                final Packet packet;
+                try {
+                    packet = next();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (packet == null) {
+                    return false;
+                }
+                inAction.accept(packet);
+                return true;
+            }
+        }, false);
+    }
+
+    /**
+     * Returns the rest of the capture decoded into DHCPMessages.  Packets
+     * that do not decode are counted as skipped.
+     */
+    public Stream<DHCPMessage> messages() {
+        return packets().map(packet -> {
+            try {
+                return packet.toMessage();
+            } catch (final MalformedPacketException e) {
+                skipped++;
+                return null;
+            }
+        }).filter(message -> message != null);
+    }
+
+    /** Returns the number of frames read so far. */
+    public long getFrameCount() {
+        return frame;
+    }
+
+    /**
+     * Returns the number of frames read so far that were not returned:
+     * other protocols, other ports, fragments, and undecodable messages.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /** Closes the file.  Payloads already returned stay readable. */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readPcapHeader(final int magic) throws IOException {
+        if (magic == PCAP_MICROS || magic == PCAP_NANOS) {
+            swap = false;
+        } else if (Integer.reverseBytes(magic) == PCAP_MICROS || Integer.reverseBytes(magic) == PCAP_NANOS) {
+            swap = true;
+        } else {
+            throw new IOException("Not a pcap or pcapng capture.");
+        }
+        final boolean nanos = (swap ? Integer.reverseBytes(magic) : magic) == PCAP_NANOS;
+        tsUnit = nanos ? 1L : 1000L;
+        linkType = fileInt(20) & 0xFFFF;	// the upper bits carry FCS information
+    }
+
+    /** Reads one pcap record. */
+    private Packet nextRecord() throws IOException {
+        if (!map(offset, 16)) {
+            offset = size;
+            return null;
+        }
+        final long seconds = fileInt(0) & 0xFFFFFFFFL;
+        final long fraction = fileInt(4) & 0xFFFFFFFFL;
+        final int captured = fileInt(8);
+        if (captured < 0 || !map(offset, 16 + captured)) {
+            offset = size;	// cut short
+            return null;
+        }
+        frame++;
+        final long start = offset + 16;
+        offset = start + captured;
+        return decodeFrame(linkType, seconds * 1000000000L + fraction * tsUnit, start, captured);
+    }
+
+    /** Reads one pcapng block. */
+    private Packet nextBlock() throws IOException {
+        if (!map(offset, 12)) {
+            offset = size;
+            return null;
+        }
+        int type = window.getInt(window.position());
+        if (type == PCAPNG_SHB) {
+            final int order = window.getInt(window.position() + 8);
+            if (order == PCAPNG_BYTE_ORDER) {
+                swap = false;
+            } else if (order == Integer.reverseBytes(PCAPNG_BYTE_ORDER)) {
+                swap = true;
+            } else {
+                throw new IOException("Bad pcapng byte-order magic at offset " + offset + ".");
+            }
+            interfaces.clear();
+        } else if (swap) {
+            type = Integer.reverseBytes(type);
+        }
+        final int length = fileInt(4);
+        if (length < 12 || (length & 3) != 0) {
+            throw new IOException("Bad pcapng block length " + length + " at offset " + offset + ".");
+        }
+        if (!map(offset, length)) {
+            offset = size;	// cut short
+            return null;
+        }
+        final long block = offset;
+        offset += length;
+
+        switch (type) {
+        case PCAPNG_IDB:
+            interfaces.add(new long[] { fileShort(8), interfaceResolution(length) });
+            return null;
+        case PCAPNG_EPB:
+        case PCAPNG_OPB: {
+            frame++;
+            final int id = type == PCAPNG_EPB ? fileInt(8) : fileShort(8);
+            if (id < 0 || id >= interfaces.size()) {
+                skipped++;
+                return null;
+            }
+            final long[] iface = interfaces.get(id);
+            final long units = (fileInt(12) & 0xFFFFFFFFL) << 32 | fileInt(16) & 0xFFFFFFFFL;
+            final int captured = fileInt(20);
+            if (captured < 0 || 28 + captured > length - 4) {
+                throw new IOException("Bad pcapng packet length at offset " + block + ".");
+            }
+            return decodeFrame((int) iface[0], toNanos(units, iface[1]), block + 28, captured);
+        }
+        case PCAPNG_SPB: {
+            frame++;
+            if (interfaces.isEmpty()) {
+                skipped++;
+                return null;
+            }
+            final int original = fileInt(8);
+            final int captured = Math.min(original, length - 16);
+            return decodeFrame((int) interfaces.get(0)[0], 0L, block + 12, captured);
+        }
+        default:
+            return null;	// section header, statistics, name resolution, ...
+        }
+    }
+
+    /**
+     * Returns an interface's timestamp units per second from its
+     * if_tsresol option; the window must hold the interface block.
+     */
+    private long interfaceResolution(final int length) {
+        int position = 16;
+        while (position + 4 <= length - 4) {
+            final int code = fileShort(position);
+            final int optionLength = fileShort(position + 2);
+            if (code == 0) {
+                break;	// opt_endofopt
+            }
+            if (code == 9 && optionLength == 1) {	// if_tsresol
+                final int resolution = window.get(window.position() + position + 4);
+                final int exponent = resolution & 0x7F;
+                if ((resolution & 0x80) != 0) {
+                    return exponent < 63 ? 1L << exponent : Long.MAX_VALUE;
+                }
+                long perSecond = 1;
+                for (int i = 0; i < exponent && perSecond <= Long.MAX_VALUE / 10; i++) {
+                    perSecond *= 10;
+                }
+                return perSecond;
+            }
+            position += 4 + (optionLength + 3 & ~3);
+        }
+        return 1000000L;
+    }
+
+    private static long toNanos(final long units, final long perSecond) {
+        if (perSecond == 1000000000L) {
+            return units;
+        }
+        final long seconds = units / perSecond;
+        final long remainder = units % perSecond;
+        final long nanos = perSecond <= 1000000000L
+                ? remainder * (1000000000L / perSecond)
+                : (long) (remainder * (1e9 / perSecond));
+        return seconds * 1000000000L + nanos;
+    }
+
+    /**
+     * Walks a frame's link, IPv4 and UDP headers.  The frame must be in
+     * the window.
+     * @param start file offset of the frame
+     * @return the DHCP packet, or null if the frame holds none
+     */
+    private Packet decodeFrame(final int link, final long timestamp, final long start, final int captured) {
+        final int base = (int) (start - windowStart);
+        final int end = base + captured;
+        int ip;
+        switch (link) {
+        case LINKTYPE_ETHERNET: {
+            ip = base + 12;
+            int etherType = end >= ip + 2 ? window.getShort(ip) & 0xFFFF : 0;
+            while ((etherType == 0x8100 || etherType == 0x88A8 || etherType == 0x9100) && end >= ip + 6) {
+                ip += 4;
+                etherType = window.getShort(ip) & 0xFFFF;
+            }
+            if (etherType != 0x0800) {
+                skipped++;
+                return null;
+            }
+            ip += 2;
+            break;
+        }
+        case LINKTYPE_LINUX_SLL:
+            if (end < base + 16 || window.getShort(base + 14) != 0x0800) {
+                skipped++;
+                return null;
+            }
+            ip = base + 16;
+            break;
+        case LINKTYPE_LINUX_SLL2:
+            if (end < base + 20 || window.getShort(base) != 0x0800) {
+                skipped++;
+                return null;
+            }
+            ip = base + 20;
+            break;
+        case LINKTYPE_NULL:
+        case LINKTYPE_LOOP: {
+            // the address family is in the capturing host's byte order
+            final int family = end >= base + 4 ? window.getInt(base) : 0;
+            if (family != 2 && family != 0x02000000) {
+                skipped++;
+                return null;
+            }
+            ip = base + 4;
+            break;
+        }
+        case LINKTYPE_RAW:
+        case LINKTYPE_IPV4:
+        case 12:	// raw IP on OpenBSD and some other systems
+        case 14:
+            ip = base;
+            break;
+        default:
+            skipped++;
+            return null;
+        }
+
+        if (end < ip + 20 || (window.get(ip) & 0xF0) != 0x40 || window.get(ip + 9) != 17
+                || (window.getShort(ip + 6) & 0x3FFF) != 0) {	// not IPv4 UDP, or a fragment
+            skipped++;
+            return null;
+        }
+        final int udp = ip + (window.get(ip) & 0x0F) * 4;
+        if (end < udp + 8) {
+            skipped++;
+            return null;
+        }
+        final int sourcePort = window.getShort(udp) & 0xFFFF;
+        final int destinationPort = window.getShort(udp + 2) & 0xFFFF;
+        if (!isDHCPPort(sourcePort) && !isDHCPPort(destinationPort)) {
+            skipped++;
+            return null;
+        }
+        final int udpLength = window.getShort(udp + 4) & 0xFFFF;
+        final int payloadLength = Math.max(0, udpLength - 8);
+        final int available = Math.min(payloadLength, end - udp - 8);
+        final ByteBuffer payload = window.duplicate();
+        payload.limit(udp + 8 + available).position(udp + 8);
+        return new Packet(frame, timestamp, window.getInt(ip + 12), sourcePort, window.getInt(ip + 16), destinationPort,
+                payload.slice().asReadOnlyBuffer(), available < payloadLength);
+    }
+
+    private static boolean isDHCPPort(final int port) {
+        return port == DHCPMessage.SERVER_PORT || port == DHCPMessage.CLIENT_PORT;
+    }
+
+    /**
+     * Maps a window holding [inOffset, inOffset + inLength) unless the
+     * current one already does.
+     * @return false if the file ends first
+     */
+    private boolean map(final long inOffset, final int inLength) throws IOException {
+        if (inLength < 0 || inOffset + inLength > size) {
+            return false;
+        }
+        if (window == null || inOffset < windowStart || inOffset + inLength > windowStart + window.capacity()) {
+            final long length = Math.min(size - inOffset, Math.max(windowSize, inLength));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, inOffset, length).order(ByteOrder.BIG_ENDIAN);
+            windowStart = inOffset;
+        }
+        window.position((int) (inOffset - windowStart));
+        return true;
+    }
+
+    /** Reads a file-order int at an offset from the current position. */
+    private int fileInt(final int inOffset) {
+        final int value = window.getInt(window.position() + inOffset);
+        return swap ? Integer.reverseBytes(value) : value;
+    }
+
+    /** Reads a file-order unsigned short at an offset from the current position. */
+    private int fileShort(final int inOffset) {
+        final short value = window.getShort(window.position() + inOffset);
+        return (swap ? Short.reverseBytes(value) : value) & 0xFFFF;
+    }
+}
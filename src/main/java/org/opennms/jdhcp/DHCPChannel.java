@@ -0,0 +1,279 @@
+package org.opennms.jdhcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.LinkedList;
+
+/**
+ * This class represents a non-blocking UDP port bound by a DHCPEventLoop.
+ * Messages handed to send() are encoded on the calling thread and written
+ * by the event loop thread; received messages are decoded on the event loop
+ * thread and passed to the channel's listener.
+ * @see DHCPEventLoop
+ */
+public class DHCPChannel {
+    private final DHCPEventLoop loop;
+    private final DatagramChannel channel;
+    private final DHCPMessageListener listener;
+    private final LinkedList<Outbound> backlog = new LinkedList<Outbound>();	// loop thread only
+    private SelectionKey key;
+    private volatile DHCPMetrics metrics = DHCPMetrics.NOOP;
+    private volatile DHCPPacketTap tap;
+    private volatile DHCPPacketFilter filter;
+    private int tapAddress;	// local address and port for traced datagrams
+    private int tapPort;
+
+    DHCPChannel(final DHCPEventLoop inLoop, final DatagramChannel inChannel, final DHCPMessageListener inListener) {
+        loop = inLoop;
+        channel = inChannel;
+        listener = inListener;
+    }
+
+    /**
+     * Sends a DHCPMessage object to the message's destination and port.
+     * The message is encoded before this method returns, so it may be
+     * changed or reused afterwards.  Like any UDP send, the message may be
+     * dropped, for example if the channel is closed before it is written.
+     * @param inMessage well-formed DHCPMessage to be sent
+     */
+    public void send(final DHCPMessage inMessage) throws IOException {
+        final ByteBuffer data = ByteBuffer.wrap(inMessage.externalize());
+        send(data, new InetSocketAddress(inMessage.getDestination(), inMessage.getPort()), inMessage.messageType());
+    }
+
+    /**
+     * Sends a compiled message to its destination and port.  The event
+     * loop writes it later, so the encoding is copied, but not encoded
+     * again; the message may be patched again once this method returns.
+     * @param inMessage the compiled message
+     */
+    public void send(final DHCPCompiledMessage inMessage) {
+        final ByteBuffer data = ByteBuffer.wrap(inMessage.getData().clone());
+        send(data, inMessage.getSocketAddress(), inMessage.getMessageType());
+    }
+
+    /**
+     * Sends an already encoded message.  The bytes between the buffer's
+     * position and limit are sent; the buffer must not be changed until the
+     * event loop has written it, so callers resending one encoding should
+     * pass a duplicate each time.
+     * @param messageType the message's type, reported to the metrics
+     */
+    void send(final ByteBuffer data, final InetSocketAddress destination, final int messageType) {
+        metrics.messageSent(messageType, data.remaining());
+        loop.enqueue(new Outbound(this, data, destination));
+    }
+
+    /**
+     * Reports the channel's sends, receives and decode failures to the
+     * given metrics.
+     * @param inMetrics the metrics, or DHCPMetrics.NOOP to stop reporting
+     */
+    public void setMetrics(final DHCPMetrics inMetrics) {
+        metrics = inMetrics == null ? DHCPMetrics.NOOP : inMetrics;
+    }
+
+    /**
+     * Returns the metrics the channel reports to.
+     */
+    public DHCPMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Traces every datagram the channel writes and reads, whether or not
+     * it decodes, to a packet tap.
+     * @param inTap the tap, or null to stop tracing
+     */
+    public void setTap(final DHCPPacketTap inTap) {
+        tapAddress = DHCPPacketTap.toInt(channel.socket().getLocalAddress());
+        tapPort = getLocalPort();
+        tap = inTap;
+    }
+
+    /**
+     * Returns the packet tap, or null if the channel is not traced.
+     */
+    public DHCPPacketTap getTap() {
+        return tap;
+    }
+
+    /**
+     * Drops received datagrams the filter rejects before they are decoded,
+     * so they never reach the listener.
+     * @param inFilter the filter, or null to decode every datagram
+     */
+    public void setFilter(final DHCPPacketFilter inFilter) {
+        filter = inFilter;
+    }
+
+    /**
+     * Returns the packet filter, or null if every datagram is decoded.
+     */
+    public DHCPPacketFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns the local address this channel is bound to.
+     * @return the local socket address
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Returns the local port this channel is bound to.
+     * @return the local port
+     */
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Sets the kernel receive buffer size of the channel; raise it when many
+     * replies may arrive in a burst.
+     * @param inSize the requested receive buffer size in bytes
+     */
+    public void setReceiveBufferSize(final int inSize) throws IOException {
+        channel.socket().setReceiveBufferSize(inSize);
+    }
+
+    /**
+     * Closes this channel; messages not yet written are dropped.
+     */
+    public void close() throws IOException {
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+
+    /**
+     * Reports whether or not the channel is still open.
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    DatagramChannel getDatagramChannel() {
+        return channel;
+    }
+
+    /**
+     * Sets the channel's selection key once the loop has registered it,
+     * asking to be told when it is writable if packets were queued before.
+     */
+    void setKey(final SelectionKey inKey) {
+        key = inKey;
+        if (!backlog.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Reads every datagram already queued on the channel, decoding each one
+     * and passing it to the listener.  Malformed packets are dropped.
+     */
+    void read(final ByteBuffer buffer) throws IOException {
+        for (;;) {
+            buffer.clear();
+            final SocketAddress from = channel.receive(buffer);
+            if (from == null) {
+                return;
+            }
+            buffer.flip();
+            final int length = buffer.remaining();
+            final InetSocketAddress source = (InetSocketAddress) from;
+            final DHCPPacketTap current = tap;
+            if (current != null) {
+                current.record(buffer, DHCPPacketTap.toInt(source.getAddress()), source.getPort(), tapAddress, tapPort);
+            }
+            final DHCPPacketFilter accepted = filter;
+            if (accepted != null && !accepted.accept(buffer)) {
+                metrics.packetFiltered(length);
+                continue;
+            }
+            final DHCPMessage message = new DHCPMessage(source.getAddress(), source.getPort());
+            try {
+                message.decodeFrom(buffer);
+            } catch (final MalformedPacketException e) {
+                metrics.decodeFailed(e.getReason(), length);
+                continue;
+            }
+            metrics.messageReceived(message.messageType(), length);
+            try {
+                listener.messageReceived(this, message, source);
+            } catch (final RuntimeException e) {
+                // a failing listener must not stop the event loop
+            }
+        }
+    }
+
+    /**
+     * Writes a packet, or queues it behind packets the kernel had no room
+     * for.  Until the loop has registered the channel, packets the kernel
+     * has no room for are queued and written once it is registered.
+     */
+    void write(final Outbound packet) {
+        if (backlog.isEmpty() && send(packet)) {
+            return;
+        }
+        backlog.addLast(packet);
+        if (key != null) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Writes queued packets once the channel becomes writable again.
+     */
+    void flush() {
+        while (!backlog.isEmpty()) {
+            if (!send(backlog.getFirst())) {
+                return;
+            }
+            backlog.removeFirst();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private boolean send(final Outbound packet) {
+        final ByteBuffer data = packet.data;
+        final int position = data.position();
+        try {
+            if (channel.send(data, packet.destination) == 0) {
+                return false;
+            }
+        } catch (final IOException e) {
+            return true;	// undeliverable, drop it as UDP would
+        }
+        final DHCPPacketTap current = tap;
+        if (current != null) {
+            final int end = data.position();
+            data.position(position);
+            current.record(data, tapAddress, tapPort, DHCPPacketTap.toInt(packet.destination.getAddress()), packet.destination.getPort());
+            data.position(end);
+        }
+        return true;
+    }
+
+    /**
+     * An encoded message waiting to be written by the event loop.
+     */
+    static class Outbound {
+        final DHCPChannel channel;
+        final ByteBuffer data;
+        final InetSocketAddress destination;
+
+        Outbound(final DHCPChannel inChannel, final ByteBuffer inData, final InetSocketAddress inDestination) {
+            channel = inChannel;
+            data = inData;
+            destination = inDestination;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package org.opennms.jdhcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class sends DHCP requests and matches the replies to them.
+ * Outstanding requests are kept in a table keyed by transaction id and
+ * client hardware address; a single receive loop completes the future of
+ * the request each reply belongs to, so any number of probes can share one
+ * port without stealing each other's replies.
+ * <p>
+ * Only the first matching reply completes a request; later replies with the
+ * same xid and chaddr, for example OFFERs from other servers, are dropped.
+ * The client's channel filters datagrams before decoding them, so only
+ * BOOTREPLYs with the xid of an outstanding request are decoded; other
+ * clients' replies on a shared port cost no decode work.
+ * <p>
+ * Unanswered requests are sent again following the client's
+ * RetransmissionPolicy until their deadline passes.  Retransmissions and
+ * deadlines are driven by a HashedTimingWheel rather than a scheduled task
+ * per request, so tens of thousands of transactions can be pending at once.
+ * <p>
+ * Probes can also be written in the blocking style with exchange(), which
+ * parks the calling thread on its transaction instead of holding a socket
+ * lock; run them on a {@link ProbeExecutors#newProbeExecutor() probe
+ * executor} to get one virtual thread per probe on Java 21 and later.
+ * @see DHCPEventLoop
+ * @see RetransmissionPolicy
+ */
+public class DHCPClient implements Closeable {
+    /**
+     * Default time to wait for a reply, the same as DHCPSocket's SO_TIMEOUT
+     */
+    public static final long DEFAULT_TIMEOUT = 3000;
+
+    private final DHCPEventLoop loop;
+    private final boolean ownsLoop;
+    private final DHCPChannel channel;
+    private final ConcurrentHashMap<TransactionKey, Transaction> pending = new ConcurrentHashMap<TransactionKey, Transaction>();
+    private final DHCPXidFilter pendingXids = new DHCPXidFilter();
+    private final HashedTimingWheel timer;
+    private final boolean ownsTimer;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile RetransmissionPolicy retransmissionPolicy = RetransmissionPolicy.RFC2131;
+    private volatile DHCPMetrics metrics = DHCPMetrics.NOOP;
+
+    /**
+     * Creates a client bound to a port on all local addresses, running its
+     * own event loop.
+     * @param inPort the local port to send from and receive on
+     */
+    public DHCPClient(final int inPort) throws IOException {
+        this(new DHCPEventLoop(), true, new InetSocketAddress(inPort), new HashedTimingWheel(), true);
+        loop.start();
+    }
+
+    /**
+     * Creates a client on a channel of an existing event loop.  The loop is
+     * not started or closed by the client.
+     * @param inLoop the event loop to bind the client's channel with
+     * @param inAddress the local address to send from and receive on
+     */
+    public DHCPClient(final DHCPEventLoop inLoop, final InetSocketAddress inAddress) throws IOException {
+        this(inLoop, false, inAddress, new HashedTimingWheel(), true);
+    }
+
+    /**
+     * Creates a client on a channel of an existing event loop, scheduling
+     * its retransmissions and deadlines on a shared timing wheel.  Neither
+     * the loop nor the wheel is started or closed by the client.
+     * @param inLoop the event loop to bind the client's channel with
+     * @param inAddress the local address to send from and receive on
+     * @param inTimer the timing wheel to schedule retransmissions on
+     */
+    public DHCPClient(final DHCPEventLoop inLoop, final InetSocketAddress inAddress, final HashedTimingWheel inTimer) throws IOException {
+        this(inLoop, false, inAddress, inTimer, false);
+    }
+
+    private DHCPClient(final DHCPEventLoop inLoop, final boolean inOwnsLoop, final InetSocketAddress inAddress,
+            final HashedTimingWheel inTimer, final boolean inOwnsTimer) throws IOException {
+        loop = inLoop;
+        ownsLoop = inOwnsLoop;
+        timer = inTimer;
+        ownsTimer = inOwnsTimer;
+        channel = inLoop.bind(inAddress, new DHCPMessageListener() {
+            public void messageReceived(final DHCPChannel inChannel, final DHCPMessage message, final InetSocketAddress source) {
+                complete(message);
+            }
+        });
+        channel.setFilter(DHCPPacketFilter.and(DHCPPacketFilter.op(2), pendingXids));
+    }
+
+    /**
+     * Sets the time send() waits for a reply before failing the request.
+     * @param inTimeout the timeout
+     * @param inUnit the unit of inTimeout
+     */
+    public void setTimeout(final long inTimeout, final TimeUnit inUnit) {
+        timeout = inUnit.toMillis(inTimeout);
+    }
+
+    /**
+     * Returns the time, in milliseconds, send() waits for a reply.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets when unanswered requests are sent again; RFC 2131 backoff by
+     * default.  Retransmissions stop at the request's deadline, so with the
+     * default 3 second timeout a request is only sent once.
+     * @param inPolicy the retransmission policy for requests sent from now on
+     */
+    public void setRetransmissionPolicy(final RetransmissionPolicy inPolicy) {
+        retransmissionPolicy = inPolicy;
+    }
+
+    /**
+     * Returns the retransmission policy.
+     */
+    public RetransmissionPolicy getRetransmissionPolicy() {
+        return retransmissionPolicy;
+    }
+
+    /**
+     * Reports the client's packets, timeouts and reply times, keyed by the
+     * server each request was sent to, to the given metrics.  The client's
+     * channel reports to the same metrics.
+     * @param inMetrics the metrics, or DHCPMetrics.NOOP to stop reporting
+     */
+    public void setMetrics(final DHCPMetrics inMetrics) {
+        metrics = inMetrics == null ? DHCPMetrics.NOOP : inMetrics;
+        channel.setMetrics(metrics);
+    }
+
+    /**
+     * Returns the metrics the client reports to.
+     */
+    public DHCPMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the channel the client sends and receives on.
+     */
+    public DHCPChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the number of requests still waiting for a reply.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Sends a request and waits for the reply with the client's timeout.
+     * @param inMessage the request; its xid and chaddr identify the reply
+     * @return a future completed with the reply, or exceptionally with a
+     *         TimeoutException if none arrives in time
+     */
+    public CompletableFuture<DHCPMessage> send(final DHCPMessage inMessage) {
+        return send(inMessage, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a request and waits for the reply, retransmitting it until the
+     * timeout passes.  Cancelling the returned future stops waiting for the
+     * reply.
+     * @param inMessage the request; its xid and chaddr identify the reply
+     * @param inTimeout how long to wait for the reply
+     * @param inUnit the unit of inTimeout
+     * @return a future completed with the reply, or exceptionally with a
+     *         TimeoutException if none arrives in time
+     */
+    public CompletableFuture<DHCPMessage> send(final DHCPMessage inMessage, final long inTimeout, final TimeUnit inUnit) {
+        final TransactionKey key = new TransactionKey(inMessage.getXid(), inMessage.getChaddr(), inMessage.getHlen());
+        final Transaction transaction;
+        try {
+            transaction = new Transaction(inMessage, System.nanoTime() + inUnit.toNanos(inTimeout), retransmissionPolicy);
+        } catch (final IOException e) {
+            final CompletableFuture<DHCPMessage> failed = new CompletableFuture<DHCPMessage>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (pending.putIfAbsent(key, transaction) != null) {
+            transaction.completeExceptionally(new IllegalStateException("A request with xid " + inMessage.getXid() + " and the same chaddr is already outstanding."));
+            return transaction;
+        }
+        pendingXids.add(transaction.xid);
+        transaction.whenComplete((reply, failure) -> {
+            pending.remove(key, transaction);
+            pendingXids.remove(transaction.xid);
+            final HashedTimingWheel.Timeout expiry = transaction.expiry;
+            if (expiry != null) {
+                expiry.cancel();
+            }
+        });
+        transaction.transmit();
+        return transaction;
+    }
+
+    /**
+     * Sends a request and blocks until the reply arrives or the client's
+     * timeout passes.
+     * @param inMessage the request; its xid and chaddr identify the reply
+     * @return the reply, or null if none arrives in time
+     * @see #exchange(DHCPMessage, long, TimeUnit)
+     */
+    public DHCPMessage exchange(final DHCPMessage inMessage) throws IOException, InterruptedException {
+        return exchange(inMessage, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a request and blocks until the reply arrives or the timeout
+     * passes, retransmitting it as send() does.  This is the blocking
+     * counterpart of DHCPSocket's send() and receive(), except that no lock
+     * is held while waiting: the calling thread parks on its own entry in
+     * the transaction table, so any number of threads, including virtual
+     * threads, can wait at once without seeing each other's replies.
+     * @param inMessage the request; its xid and chaddr identify the reply
+     * @param inTimeout how long to wait for the reply
+     * @param inUnit the unit of inTimeout
+     * @return the reply, or null if none arrives in time
+     * @throws InterruptedException if the thread is interrupted while
+     *         waiting, in which case the request is abandoned
+     */
+    public DHCPMessage exchange(final DHCPMessage inMessage, final long inTimeout, final TimeUnit inUnit) throws IOException, InterruptedException {
+        final CompletableFuture<DHCPMessage> reply = send(inMessage, inTimeout, inUnit);
+        try {
+            return reply.get();
+        } catch (final InterruptedException e) {
+            reply.cancel(false);
+            throw e;
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                return null;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Fails every outstanding request and releases the client's channel,
+     * timer and, if the client created it, event loop.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            //NOSONAR
+        }
+        if (ownsLoop) {
+            loop.close();
+        }
+        if (ownsTimer) {
+            timer.close();
+        }
+        for (final Transaction transaction : pending.values()) {
+            transaction.completeExceptionally(new IOException("DHCPClient closed."));
+        }
+    }
+
+    private void complete(final DHCPMessage reply) {
+        if (reply.getOp() != 2) {	// only BOOTREPLYs answer requests
+            return;
+        }
+        final Transaction transaction = pending.get(new TransactionKey(reply.getXid(), reply.getChaddr(), reply.getHlen()));
+        if (transaction != null && transaction.complete(reply)) {
+            metrics.replyReceived(transaction.destination.getAddress(), System.nanoTime() - transaction.started);
+        }
+    }
+
+    /**
+     * An outstanding request; the future its reply completes.  The request
+     * is encoded once and the same bytes are sent on every retransmission.
+     */
+    private class Transaction extends CompletableFuture<DHCPMessage> implements Runnable {
+        private final ByteBuffer data;
+        private final InetSocketAddress destination;
+        private final int xid;
+        private final int messageType;
+        private final long started = System.nanoTime();
+        private final long deadline;
+        private final RetransmissionPolicy policy;
+        private int attempts;
+        volatile HashedTimingWheel.Timeout expiry;
+
+        Transaction(final DHCPMessage inMessage, final long inDeadline, final RetransmissionPolicy inPolicy) throws IOException {
+            data = ByteBuffer.wrap(inMessage.externalize());
+            destination = new InetSocketAddress(inMessage.getDestination(), inMessage.getPort());
+            xid = inMessage.getXid();
+            messageType = inMessage.messageType();
+            deadline = inDeadline;
+            policy = inPolicy;
+        }
+
+        /**
+         * Sends the request and schedules the next retransmission, or the
+         * deadline if that comes first.  Times out instead if the deadline
+         * has passed.
+         */
+        void transmit() {
+            if (isDone()) {
+                return;
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                timeOut();
+                return;
+            }
+            channel.send(data.duplicate(), destination, messageType);
+            // rounded up, so the last timer fires at the deadline rather than just before it
+            final long remainingMillis = (remaining + 999_999) / 1_000_000;
+            expiry = timer.schedule(this, Math.min(policy.getDelay(++attempts), remainingMillis), TimeUnit.MILLISECONDS);
+            if (isDone()) {
+                expiry.cancel();
+            }
+        }
+
+        /**
+         * Runs on the timing wheel when the retransmission delay or the
+         * deadline has passed.
+         */
+        public void run() {
+            transmit();
+        }
+
+        private void timeOut() {
+            if (completeExceptionally(new TimeoutException("No reply to xid " + xid + " after " + attempts + " attempt(s)."))) {
+                metrics.requestTimedOut(destination.getAddress());
+            }
+        }
+    }
+
+    /**
+     * Identifies a transaction by xid and the first hlen bytes of chaddr.
+     */
+    static final class TransactionKey {
+        private final int xid;
+        private final byte[] chaddr;
+
+        TransactionKey(final int inXid, final byte[] inChaddr, final byte inHlen) {
+            xid = inXid;
+            chaddr = Arrays.copyOf(inChaddr, Math.max(0, Math.min(inHlen, Math.min(16, inChaddr.length))));
+        }
+
+        public int hashCode() {
+            return 31 * xid + Arrays.hashCode(chaddr);
+        }
+
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof TransactionKey)) {
+                return false;
+            }
+            final TransactionKey other = (TransactionKey) obj;
+            return xid == other.xid && Arrays.equals(chaddr, other.chaddr);
+        }
+    }
+}
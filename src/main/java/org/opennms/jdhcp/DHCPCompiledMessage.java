@@ -0,0 +1,150 @@
+package org.opennms.jdhcp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * This class is a DHCPMessage encoded once, ready to be sent again and
+ * again.  Probes to one server are the same datagram but for the xid, secs
+ * and chaddr fields of the fixed header, so those are patched in place in
+ * the encoding before each send instead of encoding the whole message.
+ * DHCPSocket sends the encoding as it is, without encoding or allocating.
+ * <p>
+ * A compiled message is not thread safe: patch and send it from one
+ * thread, or give each sending thread its own.
+ * <pre>
+ * final DHCPCompiledMessage probe = new DHCPCompiledMessage(discover);
+ * ...
+ * probe.setXid(xid);
+ * socket.send(probe);
+ * </pre>
+ * @see DHCPSocket#send(DHCPCompiledMessage)
+ */
+public final class DHCPCompiledMessage {
+    private static final int XID_OFFSET = 4;
+    private static final int SECS_OFFSET = 8;
+    private static final int CHADDR_OFFSET = 28;
+    private static final int CHADDR_LENGTH = 16;
+
+    private final byte[] data;
+    private final InetAddress destination;
+    private final int port;
+    private final InetSocketAddress socketAddress;
+    private final DatagramPacket packet;
+    private final int messageType;
+
+    /**
+     * Encodes a message.  The message is not referenced afterwards, so it
+     * may be changed or reused.
+     * @param inMessage well-formed DHCPMessage, including its destination
+     *        and port
+     * @throws IOException if the options do not fit in the message's
+     *         maximum message size
+     */
+    public DHCPCompiledMessage(final DHCPMessage inMessage) throws IOException {
+        data = inMessage.externalize();
+        destination = inMessage.getDestination();
+        port = inMessage.getPort();
+        socketAddress = new InetSocketAddress(destination, port);
+        packet = new DatagramPacket(data, data.length, destination, port);
+        messageType = inMessage.messageType();
+    }
+
+    /**
+     * Patches the transaction id.
+     * @param inXid the transaction id
+     */
+    public void setXid(final int inXid) {
+        data[XID_OFFSET] = (byte) (inXid >>> 24);
+        data[XID_OFFSET + 1] = (byte) (inXid >>> 16);
+        data[XID_OFFSET + 2] = (byte) (inXid >>> 8);
+        data[XID_OFFSET + 3] = (byte) inXid;
+    }
+
+    /** Returns the transaction id of the encoding. */
+    public int getXid() {
+        return (data[XID_OFFSET] & 0xFF) << 24 | (data[XID_OFFSET + 1] & 0xFF) << 16
+                | (data[XID_OFFSET + 2] & 0xFF) << 8 | data[XID_OFFSET + 3] & 0xFF;
+    }
+
+    /**
+     * Patches the seconds elapsed since the client began acquiring an address.
+     * @param inSecs the seconds
+     */
+    public void setSecs(final short inSecs) {
+        data[SECS_OFFSET] = (byte) (inSecs >>> 8);
+        data[SECS_OFFSET + 1] = (byte) inSecs;
+    }
+
+    /** Returns the seconds field of the encoding. */
+    public short getSecs() {
+        return (short) ((data[SECS_OFFSET] & 0xFF) << 8 | data[SECS_OFFSET + 1] & 0xFF);
+    }
+
+    /**
+     * Patches the client hardware address, padding it with zeros to 16
+     * octets.  The hlen of the encoding is kept.
+     * @param inChaddr the client hardware address
+     */
+    public void setChaddr(final byte[] inChaddr) {
+        final int length = Math.min(inChaddr.length, CHADDR_LENGTH);
+        System.arraycopy(inChaddr, 0, data, CHADDR_OFFSET, length);
+        for (int i = length; i < CHADDR_LENGTH; i++) {
+            data[CHADDR_OFFSET + i] = 0;
+        }
+    }
+
+    /**
+     * Copies the client hardware address of the encoding.
+     * @param outChaddr array of at least 16 octets to copy it into
+     */
+    public void getChaddr(final byte[] outChaddr) {
+        System.arraycopy(data, CHADDR_OFFSET, outChaddr, 0, CHADDR_LENGTH);
+    }
+
+    /** Returns the length of the encoding in octets. */
+    public int getLength() {
+        return data.length;
+    }
+
+    /** Returns the message type, or 0 if the message has none. */
+    public int getMessageType() {
+        return messageType;
+    }
+
+    /** Returns the address the message is sent to. */
+    public InetAddress getDestination() {
+        return destination;
+    }
+
+    /** Returns the port the message is sent to. */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Decodes the encoding as it is now, for instance to check a patch.
+     * @return a new DHCPMessage with the same destination and port
+     */
+    public DHCPMessage toMessage() throws MalformedPacketException {
+        final DHCPMessage message = new DHCPMessage(destination, port);
+        message.internalize(data);
+        return message;
+    }
+
+    /** The encoding itself; patched in place, never copied. */
+    byte[] getData() {
+        return data;
+    }
+
+    InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    /** A packet carrying the encoding, reused by every DHCPSocket send. */
+    DatagramPacket getPacket() {
+        return packet;
+    }
+}
@@ -0,0 +1,258 @@
+package org.opennms.jdhcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class multiplexes any number of non-blocking DHCPChannels over a
+ * single Selector and thread.  One event loop can send and receive for
+ * thousands of in-flight transactions across several bound ports, using the
+ * same DHCPMessage codec as DHCPSocket.
+ * <p>
+ * Channels may be bound and messages sent from any thread; all I/O and all
+ * listener callbacks happen on the event loop thread.
+ * @see DHCPChannel
+ * @see DHCPSocket
+ */
+public class DHCPEventLoop implements Runnable {
+    private final Selector selector;
+    private final ByteBuffer receiveBuffer;
+    private final ConcurrentLinkedQueue<DHCPChannel> registrations = new ConcurrentLinkedQueue<DHCPChannel>();
+    private final ConcurrentLinkedQueue<DHCPChannel.Outbound> outbound = new ConcurrentLinkedQueue<DHCPChannel.Outbound>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * Creates an event loop whose receive buffer is DHCPSocket.getMTU() bytes.
+     */
+    public DHCPEventLoop() throws IOException {
+        this(DHCPSocket.getMTU());
+    }
+
+    /**
+     * Creates an event loop with a receive buffer of the given size.
+     * @param inPacketSize largest datagram that can be received
+     */
+    public DHCPEventLoop(final int inPacketSize) throws IOException {
+        selector = Selector.open();
+        receiveBuffer = ByteBuffer.allocateDirect(inPacketSize);
+    }
+
+    /**
+     * Binds a non-blocking channel to a port on all local addresses.
+     * @param inPort the port to bind
+     * @param inListener receives every message arriving on the channel
+     * @return the bound channel
+     */
+    public DHCPChannel bind(final int inPort, final DHCPMessageListener inListener) throws IOException {
+        return bind(new InetSocketAddress(inPort), inListener);
+    }
+
+    /**
+     * Binds a non-blocking channel to a local address and port.
+     * @param inAddress the local address to bind
+     * @param inListener receives every message arriving on the channel
+     * @return the bound channel
+     */
+    public DHCPChannel bind(final InetSocketAddress inAddress, final DHCPMessageListener inListener) throws IOException {
+        return bind(inAddress, inListener, false);
+    }
+
+    /**
+     * Binds a non-blocking channel to a local address and port, optionally
+     * with SO_REUSEPORT so that several channels can share the port and the
+     * kernel spreads incoming flows between them.
+     * @param inAddress the local address to bind
+     * @param inListener receives every message arriving on the channel
+     * @param inReusePort true to set SO_REUSEPORT before binding
+     * @return the bound channel
+     * @throws UnsupportedOperationException if SO_REUSEPORT is not available
+     */
+    public DHCPChannel bind(final InetSocketAddress inAddress, final DHCPMessageListener inListener, final boolean inReusePort) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (inReusePort) {
+                final SocketOption<Boolean> reusePort = getReusePortOption();
+                if (reusePort == null || !channel.supportedOptions().contains(reusePort)) {
+                    throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform.");
+                }
+                channel.setOption(reusePort, Boolean.TRUE);
+            }
+            channel.configureBlocking(false);
+            channel.socket().setBroadcast(true);
+            channel.socket().bind(inAddress);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        } catch (final RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return register(new DHCPChannel(this, channel, inListener));
+    }
+
+    /**
+     * Hands a channel to the loop thread, which registers it with the selector.
+     */
+    DHCPChannel register(final DHCPChannel channel) throws ClosedChannelException {
+        if (!running) {
+            throw new ClosedChannelException();
+        }
+        registrations.add(channel);
+        wakeup();
+        return channel;
+    }
+
+    /**
+     * Starts the event loop on a new daemon thread.
+     */
+    public void start() {
+        start("DHCPEventLoop");
+    }
+
+    /**
+     * Starts the event loop on a new daemon thread with the given name.
+     * @param inThreadName name of the event loop thread
+     */
+    public synchronized void start(final String inThreadName) {
+        if (thread == null) {
+            thread = new Thread(this, inThreadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the event loop and closes every channel bound by it.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        synchronized (this) {
+            if (thread == null) {
+                closeChannels();
+            }
+        }
+    }
+
+    /**
+     * Runs the event loop on the calling thread until close() is called.
+     */
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                wakeupPending.set(false);
+                processRegistrations();
+                processOutbound();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final DHCPChannel channel = (DHCPChannel) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            channel.read(receiveBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            channel.flush();
+                        }
+                    } catch (final IOException e) {
+                        channel.close();
+                    } catch (final CancelledKeyException e) {
+                        channel.close();	// closed by another thread since it was selected
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            running = false;
+        } finally {
+            closeChannels();
+        }
+    }
+
+    /**
+     * Queues an encoded message for the loop thread to write.
+     */
+    void enqueue(final DHCPChannel.Outbound packet) {
+        outbound.add(packet);
+        wakeup();
+    }
+
+    /**
+     * Returns the SO_REUSEPORT socket option, which only exists from Java 9
+     * on, or null if the running JVM does not have it.
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (final NoSuchFieldException e) {
+            return null;
+        } catch (final IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void processRegistrations() {
+        DHCPChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.setKey(channel.getDatagramChannel().register(selector, SelectionKey.OP_READ, channel));
+            } catch (final IOException e) {
+                // closed before it could be registered
+            } catch (final CancelledKeyException e) {
+                // closed just after it was registered
+            }
+        }
+    }
+
+    private void processOutbound() {
+        DHCPChannel.Outbound packet;
+        while ((packet = outbound.poll()) != null) {
+            if (packet.channel.isOpen()) {
+                try {
+                    packet.channel.write(packet);
+                } catch (final CancelledKeyException e) {
+                    // closed by another thread, drop the packet as close() promises
+                }
+            }
+        }
+    }
+
+    private void closeChannels() {
+        processRegistrations();
+        outbound.clear();
+        for (final SelectionKey key : selector.keys()) {
+            try {
+                ((DHCPChannel) key.attachment()).close();
+            } catch (final IOException e) {
+                //NOSONAR
+            }
+        }
+        try {
+            selector.close();
+        } catch (final IOException e) {
+            //NOSONAR
+        }
+    }
+}
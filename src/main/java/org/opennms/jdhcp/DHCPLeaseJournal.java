@@ -0,0 +1,673 @@
+package org.opennms.jdhcp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a crash-safe, append-only journal of DHCP leases.  Every
+ * change to a lease is appended as a fixed-size record to a memory-mapped
+ * segment file; the latest record of each client wins.  The journal keeps
+ * an index from client hardware address to the position of its latest
+ * record, so a lease is read straight from the mapped segment.
+ * <p>
+ * Appending only copies 40 bytes into the mapped segment.  Durability is
+ * a separate step: awaitDurable() waits until a background thread has
+ * forced the segments to disk, and one force covers every record appended
+ * since the previous one (group commit).  A responder answering a batch of
+ * requests appends a record per ACK and waits once for the last of them.
+ * <p>
+ * Segments that are no longer written to are compacted in the background:
+ * once fewer than half of a segment's records are the latest of their
+ * client, the live ones are appended again and the segment file is
+ * deleted.  Expired and released leases are dropped once their record is
+ * in the oldest segment.
+ * <p>
+ * Opening a journal rebuilds the index with one sequential pass over the
+ * mapped segments.  Each record carries a CRC-32, so a record torn by a
+ * crash ends its segment and is overwritten by the next append.
+ * <p>
+ * Record layout, in network byte order:
+ * <pre>
+ *  0  chaddr (16)       16 hlen       17 state     18 unused (2)
+ * 20  yiaddr (4)        24 expiry, ms since the epoch (8)
+ * 32  marker "LEAS"     36 CRC-32 of bytes 0 to 35
+ * </pre>
+ */
+public class DHCPLeaseJournal implements Closeable {
+    /** Size in bytes of every record, and of the segment header. */
+    static final int RECORD_SIZE = 40;
+    /** Default number of records in a segment, about 4 MB. */
+    public static final int DEFAULT_SEGMENT_RECORDS = 100000;
+
+    private static final int HEADER_MAGIC = 0x4A444C4A;	// "JDLJ"
+    private static final int VERSION = 1;
+    private static final int RECORD_MARKER = 0x4C454153;	// "LEAS"
+    private static final String SUFFIX = ".journal";
+    private static final long COMPACT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The state a record gives a lease.
+     */
+    public enum State {
+        /** offered to the client but not yet requested */
+        OFFERED,
+        /** acknowledged to the client */
+        BOUND,
+        /** released by the client; the lease is gone */
+        RELEASED,
+        /** declined by the client; the address is quarantined until the expiry */
+        DECLINED
+    }
+
+    /**
+     * One lease as read from the journal.
+     */
+    public static final class Lease {
+        private final byte[] chaddr;
+        private final int hlen;
+        private final State state;
+        private final int yiaddr;
+        private final long expiry;
+
+        Lease(final byte[] inChaddr, final int inHlen, final State inState, final int inYiaddr, final long inExpiry) {
+            chaddr = inChaddr;
+            hlen = inHlen;
+            state = inState;
+            yiaddr = inYiaddr;
+            expiry = inExpiry;
+        }
+
+        /** Returns the client's hardware address, 16 octets. */
+        public byte[] getChaddr() {
+            return chaddr.clone();
+        }
+
+        /** Returns the length of the hardware address. */
+        public int getHlen() {
+            return hlen;
+        }
+
+        /** Returns the state of the lease. */
+        public State getState() {
+            return state;
+        }
+
+        /** Returns the leased address as an int in network order. */
+        public int getYiaddr() {
+            return yiaddr;
+        }
+
+        /** Returns when the lease expires, in milliseconds since the epoch. */
+        public long getExpiry() {
+            return expiry;
+        }
+    }
+
+    private final File directory;
+    private final int segmentRecords;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition forced = lock.newCondition();
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final LongMap index = new LongMap();	// client key -> position of its latest record
+    private final List<Segment> unforced = new ArrayList<Segment>();
+    private final CRC32 crc = new CRC32();	// guarded by lock
+    private final byte[] scratch = new byte[RECORD_SIZE - 4];	// guarded by lock
+    private final Thread committer;
+    private final Thread compactor;
+    private Segment active;
+    private long appendedCount;
+    private long forcedCount;
+    private IOException failure;
+    private volatile boolean running = true;
+
+    /**
+     * Opens or creates a journal with segments of the default size.
+     * @param inDirectory the directory holding the segment files; created
+     *        if it does not exist
+     */
+    public DHCPLeaseJournal(final File inDirectory) throws IOException {
+        this(inDirectory, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /**
+     * Opens or creates a journal, rebuilding its index from the segment
+     * files already in the directory.
+     * @param inDirectory the directory holding the segment files; created
+     *        if it does not exist
+     * @param inSegmentRecords number of records in a new segment
+     */
+    public DHCPLeaseJournal(final File inDirectory, final int inSegmentRecords) throws IOException {
+        if (inSegmentRecords <= 0) {
+            throw new IllegalArgumentException("A segment must hold at least one record.");
+        }
+        if (!inDirectory.isDirectory() && !inDirectory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + inDirectory + ".");
+        }
+        directory = inDirectory;
+        segmentRecords = inSegmentRecords;
+        recover();
+        if (active == null) {
+            active = createSegment(segments.isEmpty() ? 1L : segments.lastKey().longValue() + 1);
+        }
+        committer = new Thread(new Runnable() {
+            public void run() {
+                commitLoop();
+            }
+        }, "DHCPLeaseJournal-commit");
+        committer.setDaemon(true);
+        committer.start();
+        compactor = new Thread(new Runnable() {
+            public void run() {
+                compactLoop();
+            }
+        }, "DHCPLeaseJournal-compact");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Appends a lease record.  The record is visible to get() at once and
+     * durable once awaitDurable() returns for the returned ticket.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     * @param inState the state of the lease
+     * @param inYiaddr the leased address as an int in network order
+     * @param inExpiry when the lease expires, in milliseconds since the epoch
+     * @return a ticket to pass to awaitDurable()
+     */
+    public long append(final byte[] inChaddr, final int inHlen, final State inState, final int inYiaddr, final long inExpiry) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (failure != null) {
+                throw failure;
+            }
+            write(inChaddr, inHlen, inState.ordinal() + 1, inYiaddr, inExpiry);
+            appended.signal();
+            return appendedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every record up to and including the ticket's has been
+     * forced to disk.
+     * @param inTicket a ticket returned by append()
+     * @throws IOException if forcing the segments failed or the journal was closed
+     */
+    public void awaitDurable(final long inTicket) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (forcedCount < inTicket) {
+                if (failure != null) {
+                    throw failure;
+                }
+                checkOpen();
+                forced.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a lease record and waits until it is durable.
+     * @see #append(byte[], int, State, int, long)
+     */
+    public void appendAndSync(final byte[] inChaddr, final int inHlen, final State inState, final int inYiaddr, final long inExpiry) throws IOException, InterruptedException {
+        awaitDurable(append(inChaddr, inHlen, inState, inYiaddr, inExpiry));
+    }
+
+    /**
+     * Returns a client's latest lease.
+     * @param inChaddr the client's hardware address
+     * @param inHlen the length of the hardware address
+     * @return the lease, or null if the journal has none for the client
+     */
+    public Lease get(final byte[] inChaddr, final int inHlen) {
+        lock.lock();
+        try {
+            final long position = index.get(DHCPAddressPool.key(inChaddr, inHlen));
+            return position == 0L ? null : read(position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Passes every client's latest lease to the consumer, for example to
+     * restore a DHCPAddressPool on startup.  The journal is locked while it
+     * runs, so the consumer must not append.
+     * @param inConsumer receives every lease
+     */
+    public void forEach(final Consumer<Lease> inConsumer) {
+        lock.lock();
+        try {
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                if (index.keyAt(slot) != 0L) {
+                    inConsumer.accept(read(index.valueAt(slot)));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of clients with a lease record. */
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of segment files. */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compacts every sealed segment of which fewer than half the records
+     * are live.  The background compactor calls this every ten seconds.
+     * @return the number of segment files deleted
+     */
+    public int compact() throws IOException, InterruptedException {
+        int deleted = 0;
+        for (;;) {
+            final Segment victim;
+            final long ticket;
+            lock.lock();
+            try {
+                checkOpen();
+                victim = pickVictim();
+                if (victim == null) {
+                    return deleted;
+                }
+                ticket = copyLive(victim, System.currentTimeMillis());
+                appended.signal();
+            } finally {
+                lock.unlock();
+            }
+            // the copies must be on disk before the originals go
+            awaitDurable(ticket);
+            lock.lock();
+            try {
+                segments.remove(victim.sequence);
+                unforced.remove(victim);
+                victim.close();
+                if (!victim.file.delete()) {
+                    throw new IOException("Cannot delete journal segment " + victim.file + ".");
+                }
+                deleted++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forces outstanding records to disk, stops the background threads and
+     * closes the segment files.  After a failure to force the segments are
+     * closed without forcing them again.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+            appended.signalAll();
+            forced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        compactor.interrupt();
+        try {
+            committer.join();
+            compactor.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            for (final Segment segment : segments.values()) {
+                if (failure == null) {
+                    segment.force();
+                }
+                segment.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces whatever was appended since the last force, then wakes the
+     * threads waiting for it.  Stops at the first failure to force, which
+     * every later awaitDurable() and append() reports.
+     */
+    private void commitLoop() {
+        for (;;) {
+            final long target;
+            final Segment[] toForce;
+            lock.lock();
+            try {
+                while (running && appendedCount == forcedCount) {
+                    appended.awaitUninterruptibly();
+                }
+                if (appendedCount == forcedCount) {
+                    return;
+                }
+                target = appendedCount;
+                toForce = unforced.toArray(new Segment[unforced.size()]);
+                unforced.clear();
+                unforced.add(active);
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            for (final Segment segment : toForce) {
+                try {
+                    segment.force();
+                } catch (final IOException e) {
+                    error = e;
+                }
+            }
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    forcedCount = target;
+                }
+                forced.signalAll();
+                if (failure != null) {
+                    // nothing appended from now on can become durable
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void compactLoop() {
+        while (running) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(COMPACT_INTERVAL);
+                compact();
+            } catch (final InterruptedException e) {
+                return;
+            } catch (final IOException e) {
+                // leave the segment for the next round
+            }
+        }
+    }
+
+    private Segment pickVictim() {
+        for (final Segment segment : segments.values()) {
+            if (segment != active && segment.live * 2 < segment.records) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends the live records of a segment again.  Expired and released
+     * leases are dropped only from the oldest segment: anywhere else they
+     * must be kept, or an older record of the same client would win again
+     * on recovery.
+     * @return the ticket of the last record appended
+     */
+    private long copyLive(final Segment victim, final long now) throws IOException {
+        final ByteBuffer data = victim.data;
+        final byte[] chaddr = new byte[16];
+        final boolean oldest = victim.sequence == segments.firstKey().longValue();
+        for (int record = 1; record <= victim.records && victim.live > 0; record++) {
+            final long position = position(victim.sequence, record);
+            final int offset = record * RECORD_SIZE;
+            data.position(offset);
+            data.get(chaddr);
+            final int hlen = data.get(offset + 16) & 0xFF;
+            final long key = DHCPAddressPool.key(chaddr, hlen);
+            if (index.get(key) != position) {
+                continue;	// superseded by a later record
+            }
+            final int state = data.get(offset + 17);
+            final long expiry = data.getLong(offset + 24);
+            if (oldest && (state == State.RELEASED.ordinal() + 1 || expiry < now)) {
+                index.remove(key);
+                victim.live--;
+                continue;
+            }
+            write(chaddr, hlen, state, data.getInt(offset + 20), expiry);
+        }
+        return appendedCount;
+    }
+
+    /**
+     * Writes one record to the active segment, rolling to a new segment
+     * when it is full, and points the index at it.
+     */
+    private void write(final byte[] chaddr, final int hlen, final int state, final int yiaddr, final long expiry) throws IOException {
+        if (active.records == active.capacity) {	// a recovered segment keeps the size it was written with
+            active = createSegment(active.sequence + 1);
+        }
+        final int record = active.records + 1;
+        final int offset = record * RECORD_SIZE;
+        final ByteBuffer data = active.data;
+        data.position(offset);
+        data.put(chaddr, 0, Math.min(16, chaddr.length));
+        for (int i = chaddr.length; i < 16; i++) {
+            data.put((byte) 0);
+        }
+        data.put((byte) hlen);
+        data.put((byte) state);
+        data.putShort((short) 0);
+        data.putInt(yiaddr);
+        data.putLong(expiry);
+        data.putInt(RECORD_MARKER);
+        data.putInt(offset + 36, checksum(data, offset));
+        active.records = record;
+        active.live++;
+
+        final long key = DHCPAddressPool.key(chaddr, hlen);
+        final long previous = index.put(key, position(active.sequence, record));
+        if (previous != 0L) {
+            final Segment old = segments.get(previous >>> 32);
+            if (old != null) {
+                old.live--;
+            }
+        }
+        appendedCount++;
+    }
+
+    private Lease read(final long position) {
+        final Segment segment = segments.get(position >>> 32);
+        final int offset = (int) position * RECORD_SIZE;
+        final ByteBuffer data = segment.data.duplicate();
+        final byte[] chaddr = new byte[16];
+        data.position(offset);
+        data.get(chaddr);
+        return new Lease(chaddr, data.get(offset + 16) & 0xFF, State.values()[data.get(offset + 17) - 1],
+                data.getInt(offset + 20), data.getLong(offset + 24));
+    }
+
+    /**
+     * Maps every segment in the directory in order and replays its valid
+     * records into the index.  The last segment becomes the active one.
+     */
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles();
+        final TreeMap<Long, File> found = new TreeMap<Long, File>();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        found.put(Long.valueOf(name.substring(0, name.length() - SUFFIX.length()), 16), file);
+                    } catch (final NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        for (final Map.Entry<Long, File> entry : found.entrySet()) {
+            final Segment segment = openSegment(entry.getKey().longValue(), entry.getValue());
+            segments.put(segment.sequence, segment);
+            replay(segment);
+            active = segment;
+        }
+        if (active != null && active.records == active.capacity) {
+            active = null;	// full, start a new one
+        } else if (active != null) {
+            unforced.add(active);	// appended to again, so forced with the next commit
+        }
+    }
+
+    private void replay(final Segment segment) {
+        final ByteBuffer data = segment.data;
+        final byte[] chaddr = new byte[16];
+        int record = 1;
+        for (; record <= segment.capacity; record++) {
+            final int offset = record * RECORD_SIZE;
+            if (data.getInt(offset + 32) != RECORD_MARKER || data.getInt(offset + 36) != checksum(data, offset)) {
+                break;	// never written, or torn by a crash
+            }
+            final int state = data.get(offset + 17);
+            if (state < 1 || state > State.values().length) {
+                break;
+            }
+            data.position(offset);
+            data.get(chaddr);
+            final long previous = index.put(DHCPAddressPool.key(chaddr, data.get(offset + 16) & 0xFF), position(segment.sequence, record));
+            if (previous != 0L) {
+                segments.get(previous >>> 32).live--;
+            }
+            segment.live++;
+        }
+        segment.records = record - 1;
+    }
+
+    private Segment createSegment(final long sequence) throws IOException {
+        final File file = new File(directory, String.format("%016x%s", Long.valueOf(sequence), SUFFIX));
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final Segment segment;
+        try {
+            raf.setLength((long) (segmentRecords + 1) * RECORD_SIZE);
+            segment = new Segment(sequence, file, raf, segmentRecords);
+        } catch (final IOException e) {
+            raf.close();
+            throw e;
+        }
+        final ByteBuffer data = segment.data;
+        data.putInt(0, HEADER_MAGIC);
+        data.putInt(4, VERSION);
+        data.putLong(8, sequence);
+        data.putInt(16, segmentRecords);
+        segments.put(sequence, segment);
+        unforced.add(segment);
+        return segment;
+    }
+
+    private Segment openSegment(final long sequence, final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long length = raf.length();
+            if (length < 2 * RECORD_SIZE) {
+                throw new IOException("Journal segment " + file + " is too short.");
+            }
+            final Segment segment = new Segment(sequence, file, raf, (int) Math.min(Integer.MAX_VALUE, length / RECORD_SIZE - 1));
+            if (segment.data.getInt(0) != HEADER_MAGIC || segment.data.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a lease journal segment.");
+            }
+            return segment;
+        } catch (final IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the CRC-32 of a record; moves the buffer's position.
+     */
+    private int checksum(final ByteBuffer data, final int offset) {
+        data.position(offset);
+        data.get(scratch);
+        crc.reset();
+        crc.update(scratch, 0, scratch.length);
+        return (int) crc.getValue();
+    }
+
+    private void checkOpen() throws IOException {
+        if (!running) {
+            throw new IOException("Lease journal is closed.");
+        }
+    }
+
+    private static long position(final long sequence, final int record) {
+        return sequence << 32 | record;
+    }
+
+    /**
+     * One mapped segment file.  Record 0 is the header; records 1 to
+     * capacity hold leases.
+     */
+    private static final class Segment {
+        final long sequence;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer data;
+        final int capacity;
+        int records;	// records written
+        int live;	// records that are the latest of their client
+
+        Segment(final long inSequence, final File inFile, final RandomAccessFile inRaf, final int inCapacity) throws IOException {
+            sequence = inSequence;
+            file = inFile;
+            raf = inRaf;
+            capacity = inCapacity;
+            data = inRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) (inCapacity + 1) * RECORD_SIZE);
+            data.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        void force() throws IOException {
+            try {
+                data.force();
+            } catch (final UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+    }
+}
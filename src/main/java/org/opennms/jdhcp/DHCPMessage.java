@@ -1,18 +1,23 @@
 package org.opennms.jdhcp;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.net.UnknownHostException;
 
 
 /**
  * This class represents a DHCP Message.
+ * <p>
+ * A message is not thread safe.  Encoding only reads it, so several
+ * threads may encode or send one message at once, but it must not be
+ * changed or decoded into while another thread uses it.
  * @author Jason Goldschmidt and Nick Stone
  */
 
@@ -24,16 +29,17 @@ public class DHCPMessage extends Object {
     private int  xid;				// transaction id
     private short secs;		 	// elapsed time from trying to boot
     private short flags;			// flags
-    private byte[] ciaddr = new byte[4];	// client IP
-    private byte[] yiaddr = new byte[4];	// your client IP
-    private byte[] siaddr = new byte[4];	// Server IP
-    private byte[] giaddr = new byte[4];	// relay agent IP
-    private byte[] chaddr = new byte[16];      	// Client HW address
-    private byte[] sname  = new byte[64];	// Optional server host name
-    private byte[] file   = new byte[128];       // Boot file name
+    private final byte[] ciaddr = new byte[4];	// client IP
+    private final byte[] yiaddr = new byte[4];	// your client IP
+    private final byte[] siaddr = new byte[4];	// Server IP
+    private final byte[] giaddr = new byte[4];	// relay agent IP
+    private final byte[] chaddr = new byte[16];      	// Client HW address
+    private final byte[] sname  = new byte[64];	// Optional server host name
+    private final byte[] file   = new byte[128];       // Boot file name
     private DHCPOptions optionsList = new DHCPOptions(); // internal representation of 
     // DHCP Options
 
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;	// largest message to encode
     private int gPort;		// global port variable for object
     private InetAddress destination;		// IP format of the servername
 
@@ -89,6 +95,23 @@ public class DHCPMessage extends Object {
      */
     public static final int INFORM = 8;
 
+    /**
+     * Length of the fixed BOOTP header that precedes the options field
+     */
+    static final int HEADER_LENGTH = 236;
+
+    /**
+     * Default maximum DHCP message length: the fixed header plus the
+     * 312 byte options field every DHCP client must accept (RFC 2131)
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = HEADER_LENGTH + 312;
+
+    /**
+     * Shortest message ever sent; BOOTP relays may drop anything
+     * shorter than 300 bytes (RFC 1542)
+     */
+    static final int MIN_MESSAGE_LENGTH = 300;
+
     private static InetAddress sBROADCAST = null;
     static {
         try {
@@ -109,33 +132,35 @@ public class DHCPMessage extends Object {
 
     /** Copy constructor 
      * creates DHCPMessage from inMessage
+     * @see #copy()
+     * @throws MalformedPacketException never; kept for existing callers
      */
     public DHCPMessage(final DHCPMessage inMessage) throws MalformedPacketException {
         destination = sBROADCAST;
         gPort = SERVER_PORT;
-        setMessageValues(inMessage);
-        optionsList.internalize(inMessage.getOptions()); 
-
+        copyFrom(inMessage);
     }
 
     /** Copy constructor
      * creates DHCPMessage from inMessage and sets server and port
+     * @throws MalformedPacketException never; kept for existing callers
      */
 
     public DHCPMessage(final DHCPMessage inMessage, final InetAddress inServername, final int inPort) throws MalformedPacketException {
         destination = inServername;
         gPort = inPort;
-
-        setMessageValues(inMessage);
-        optionsList.internalize(inMessage.getOptions()); 
+        copyFrom(inMessage);
     }
 
+    /** Copy constructor
+     * creates DHCPMessage from inMessage and sets server
+     * @throws MalformedPacketException never; kept for existing callers
+     */
+
     public DHCPMessage(final DHCPMessage inMessage, final InetAddress inServername) throws MalformedPacketException {
         destination = inServername;	 
         gPort = SERVER_PORT;
-
-        setMessageValues(inMessage);
-        optionsList.internalize(inMessage.getOptions()); 
+        copyFrom(inMessage);
     }
 
 
@@ -258,37 +283,63 @@ public class DHCPMessage extends Object {
     // Precondition: a "well-formed" DHCPMessage object
     // Postcondition: a byte array representation of that object is returned
 
-    public synchronized byte[] externalize() throws IOException {
-        ByteArrayOutputStream outBStream = null;
-        DataOutputStream outStream = null;
-
+    public byte[] externalize() throws IOException {
+        final int optionsLength = optionsList.getEncodedLength();
+        final byte[] data;
         try {
-            outBStream = new ByteArrayOutputStream();
-            outStream = new DataOutputStream(outBStream);
-
-            outStream.writeByte(op);
-            outStream.writeByte(htype);
-            outStream.writeByte(hlen);
-            outStream.writeByte(hops);
-            outStream.writeInt(xid);
-            outStream.writeShort(secs);
-            outStream.writeShort(flags);
-            outStream.write(ciaddr, 0, 4);
-            outStream.write(yiaddr, 0, 4);
-            outStream.write(siaddr, 0, 4);
-            outStream.write(giaddr, 0, 4);
-            outStream.write(chaddr, 0, 16);
-            outStream.write(sname, 0, 64);
-            outStream.write(file, 0, 128);
-            final byte[] options = optionsList.externalize();
-            outStream.write(options, 0, 312);
-        } finally {
-            closeQuietly(outStream);
-            closeQuietly(outBStream);
+            if (optionsLength <= maxMessageSize - HEADER_LENGTH) {
+                data = new byte[Math.max(MIN_MESSAGE_LENGTH, HEADER_LENGTH + optionsLength)];
+                encodeTo(ByteBuffer.wrap(data));
+            } else {
+                final ByteBuffer buffer = ByteBuffer.allocate(maxMessageSize);
+                encodeTo(buffer);
+                data = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, data, 0, data.length);
+            }
+        } catch (final BufferOverflowException e) {
+            throw new IOException("DHCP options do not fit in a " + maxMessageSize + " byte message.");
         }
+        return data;
+    }
 
-        // extract the byte array from the Stream
-        return outBStream.toByteArray();
+    /** Writes this DHCPMessage into a buffer, starting at its position.
+     * The fixed BOOTP header and the options are written directly into the
+     * buffer, which may be a heap or a direct buffer; on return its position
+     * is just past the end of the message.  Only as many bytes as the options
+     * need are written, padded to the 300 byte BOOTP minimum.  Options that
+     * do not fit in the options field of a message of the maximum message
+     * size are carried in the file and sname fields instead, provided those
+     * are empty.
+     * @param buffer  the buffer to write the message to
+     * @throws BufferOverflowException if the buffer has too little space
+     * remaining, or the options do not fit in the maximum message size
+     */
+    public void encodeTo(final ByteBuffer buffer) {
+        final boolean swap = buffer.order() != ByteOrder.BIG_ENDIAN;
+        final int start = buffer.position();
+
+        buffer.put(op);
+        buffer.put(htype);
+        buffer.put(hlen);
+        buffer.put(hops);
+        buffer.putInt(swap ? Integer.reverseBytes(xid) : xid);
+        buffer.putShort(swap ? Short.reverseBytes(secs) : secs);
+        buffer.putShort(swap ? Short.reverseBytes(flags) : flags);
+        buffer.put(ciaddr, 0, 4);
+        buffer.put(yiaddr, 0, 4);
+        buffer.put(siaddr, 0, 4);
+        buffer.put(giaddr, 0, 4);
+        buffer.put(chaddr, 0, 16);
+        buffer.put(sname, 0, 64);
+        buffer.put(file, 0, 128);
+        if (optionsList.getEncodedLength() <= maxMessageSize - HEADER_LENGTH) {
+            optionsList.encodeTo(buffer);
+        } else {
+            optionsList.encodeOverloaded(buffer, start, maxMessageSize - HEADER_LENGTH, isEmpty(file), isEmpty(sname));
+        }
+        while (buffer.position() - start < MIN_MESSAGE_LENGTH) {
+            buffer.put((byte) 0);
+        }
     }
 
     /** Convert a specified byte array containing a DHCP message into a
@@ -302,18 +353,59 @@ public class DHCPMessage extends Object {
     // Postcondition: the contents on the byte array are stored into
     // the data members of the DHCPMessage object.
 
-    public synchronized DHCPMessage internalize(final byte[] ibuff) throws MalformedPacketException {
-        ByteArrayInputStream inBStream = null;
-        DataInputStream inStream = null;
+    public DHCPMessage internalize(final byte[] ibuff) throws MalformedPacketException {
+        return decodeFrom(ByteBuffer.wrap(ibuff));
+    }
 
-        try {
-            inBStream = new ByteArrayInputStream(ibuff, 0, ibuff.length);
-            inStream = new DataInputStream(inBStream);
+    /** Reads a DHCP message from a buffer, from its position up to its limit,
+     * into this DHCPMessage object.  The header fields are copied straight out
+     * of the buffer, which may be a heap or a direct buffer; on return its
+     * position is just past the end option.
+     * @return this DHCPMessage object
+     * @param  buffer  the buffer holding a received DHCP message
+     * @throws MalformedPacketException if the buffer does not hold a complete message
+     */
+    public DHCPMessage decodeFrom(final ByteBuffer buffer) throws MalformedPacketException {
+        final boolean swap = buffer.order() != ByteOrder.BIG_ENDIAN;
 
-            readInputStream(inStream);
-        } finally {
-            closeQuietly(inStream);
-            closeQuietly(inBStream);
+        try {
+            op = buffer.get();
+            htype = buffer.get();
+            hlen = buffer.get();
+            hops = buffer.get();
+            xid = buffer.getInt();
+            secs = buffer.getShort();
+            flags = buffer.getShort();
+            if (swap) {
+                xid = Integer.reverseBytes(xid);
+                secs = Short.reverseBytes(secs);
+                flags = Short.reverseBytes(flags);
+            }
+            buffer.get(ciaddr, 0, 4);
+            buffer.get(yiaddr, 0, 4);
+            buffer.get(siaddr, 0, 4);
+            buffer.get(giaddr, 0, 4);
+            buffer.get(chaddr, 0, 16);
+            buffer.get(sname, 0, 64);
+            buffer.get(file, 0, 128);
+        } catch (final BufferUnderflowException e) {
+            throw new MalformedPacketException(MalformedPacketException.Reason.SHORT_HEADER, "Packet is shorter than the BOOTP header.", e);
+        }
+        optionsList.decodeFrom(buffer);
+
+        // option overload: the file and then the sname field carry more options
+        final byte[] overload = optionsList.getOption((byte) 52);
+        if (overload != null) {
+            optionsList.removeOption((byte) 52);
+            final int fields = overload.length > 0 ? overload[0] : 0;
+            if ((fields & 1) != 0) {
+                optionsList.decodeOverloadedArea(ByteBuffer.wrap(file));
+                Arrays.fill(file, (byte) 0);
+            }
+            if ((fields & 2) != 0) {
+                optionsList.decodeOverloadedArea(ByteBuffer.wrap(sname));
+                Arrays.fill(sname, (byte) 0);
+            }
         }
 
         return this;
@@ -375,52 +467,65 @@ public class DHCPMessage extends Object {
     }
 
     /** Set client IP address.
-     * @param inCiaddr client IP address
+     * @param inCiaddr client IP address; copied
      */
     public void  setCiaddr(final byte[] inCiaddr) {
-        ciaddr = inCiaddr;
+        copyField(inCiaddr, ciaddr);
     }
 
     /** Set 'your' (client) IP address.
-     * @param inYiaddr 'your' (client) IP address
+     * @param inYiaddr 'your' (client) IP address; copied
      */
     public void setYiaddr(final byte[] inYiaddr) {
-        yiaddr = inYiaddr;
+        copyField(inYiaddr, yiaddr);
     }
 
     /** Set address of next server to use in bootstrap.
-     * @param inSiaddr address of next server to use in bootstrap
+     * @param inSiaddr address of next server to use in bootstrap; copied
      */
     public void  setSiaddr(final byte[] inSiaddr) {
-        siaddr = inSiaddr;
+        copyField(inSiaddr, siaddr);
     }
 
     /** Set relay agent IP address.
-     * @param inGiaddr relay agent IP address
+     * @param inGiaddr relay agent IP address; copied
      */
     public void setGiaddr(final byte[] inGiaddr) {
-        giaddr = inGiaddr;
+        copyField(inGiaddr, giaddr);
     }
 
     /** Set client hardware address.
-     * @param inChiaddr client hardware address
+     * @param inChaddr client hardware address; copied and padded with
+     * zeros to 16 octets
      */
     public void setChaddr(final byte[] inChaddr) {
-        chaddr = inChaddr;
+        copyField(inChaddr, chaddr);
     }
 
     /** Set optional server host name.
-     * @param inSname server host name
+     * @param inSname server host name; copied
      */
     public void setSname(final byte[] inSname) {
-        sname = inSname;
+        copyField(inSname, sname);
     }
 
     /** Set boot file name.
-     * @param inFile boot file name
+     * @param inFile boot file name; copied
      */
     public void setFile(final byte[] inFile) {
-        file = inFile;
+        copyField(inFile, file);
+    }
+
+    /** Set the largest message, in bytes, that encodeTo() and externalize()
+     * may produce.  Options beyond what fits in the options field of a message
+     * of this size overload the file and sname fields.
+     * @param inSize maximum DHCP message size, at least 548
+     */
+    public void setMaxMessageSize(final int inSize) {
+        if (inSize < DEFAULT_MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Maximum message size must be at least " + DEFAULT_MAX_MESSAGE_SIZE + " bytes.");
+        }
+        maxMessageSize = inSize;
     }
 
     /** Set message destination port.
@@ -514,6 +619,49 @@ public class DHCPMessage extends Object {
         return	file;
     }
 
+    /** Returns a copy of this message, including its destination and
+     * port.  The header is copied and the options are shared copy-on-write,
+     * so nothing is encoded or parsed.  Option values are shared: replace
+     * them with setOption() rather than change them in place.
+     * @return a new DHCPMessage equal to this one
+     */
+    public DHCPMessage copy() {
+        final DHCPMessage copy = new DHCPMessage(destination, gPort);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /** Clears this message in place, leaving it as DHCPMessage() creates
+     * it, so it can be reused for another message without garbage.  Every
+     * header field is zeroed in its existing array, the options are removed
+     * without giving up the table, and the destination, port and maximum
+     * message size return to their defaults.  The setters copy into the
+     * header fields, so arrays handed to them are left alone.
+     * @return this message
+     * @see DHCPMessagePool
+     */
+    public DHCPMessage reset() {
+        op = 0;
+        htype = 0;
+        hlen = 0;
+        hops = 0;
+        xid = 0;
+        secs = 0;
+        flags = 0;
+        Arrays.fill(ciaddr, (byte) 0);
+        Arrays.fill(yiaddr, (byte) 0);
+        Arrays.fill(siaddr, (byte) 0);
+        Arrays.fill(giaddr, (byte) 0);
+        Arrays.fill(chaddr, (byte) 0);
+        Arrays.fill(sname, (byte) 0);
+        Arrays.fill(file, (byte) 0);
+        optionsList.clear();
+        maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+        destination = sBROADCAST;
+        gPort = SERVER_PORT;
+        return this;
+    }
+
     /** Get all options.
      *@return a byte array containing options 
      */
@@ -521,6 +669,11 @@ public class DHCPMessage extends Object {
         return optionsList.externalize();
     }
 
+    /** Get the largest message, in bytes, that encodeTo() may produce. */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
     /** Get message destination port
      * @return an integer representation of the message destination port 
      */
@@ -575,6 +728,217 @@ public class DHCPMessage extends Object {
         return optionsList.contains((byte)inOptNum);
     }
 
+    /**
+     * Returns the DHCP message type for metrics: the first octet of option
+     * 53, or 0 if it is not set.
+     */
+    int messageType() {
+        final int type = getMessageType();
+        return type < 0 ? 0 : type;
+    }
+
+    /**************************************************************
+     * Typed option accessors read the stored option value in     *
+     * place; see DHCPOptionRegistry for the type of each option. *
+     **************************************************************/
+
+    /** Returns the DHCP message type held in option 53, or -1 if the option
+     * is not set.
+     */
+    public int getMessageType() {
+        final byte[] type = optionsList.getOption((byte) 53);
+        return type == null || type.length == 0 ? -1 : type[0] & 0xFF;
+    }
+
+    /** Sets the DHCP message type, option 53.
+     * @param inType a message type such as DISCOVER or ACK
+     */
+    public void setMessageType(final int inType) {
+        setIntOption(53, inType);
+    }
+
+    /** Returns an integer option, such as the lease time (51) or the
+     * maximum message size (57).  Values of one, two or four octets are
+     * read in network order; only a four octet value of a signed option,
+     * the time offset (2), is sign-extended.
+     * @param inOptNum  option number
+     * @param inDefault value returned if the option is not set or is not
+     *        one, two or four octets long
+     */
+    public long getIntOption(final int inOptNum, final long inDefault) {
+        final byte[] value = optionsList.getOption((byte) inOptNum);
+        if (value == null) {
+            return inDefault;
+        }
+        switch (value.length) {
+        case 1:
+            return value[0] & 0xFF;
+        case 2:
+            return (value[0] & 0xFF) << 8 | value[1] & 0xFF;
+        case 4:
+            final int bits = Inet4Addresses.toInt(value);
+            return DHCPOptionRegistry.getType(inOptNum) == DHCPOptionRegistry.Type.INT32 ? bits : bits & 0xFFFFFFFFL;
+        default:
+            return inDefault;
+        }
+    }
+
+    /** Sets an integer option in the width its type calls for: one octet
+     * for flags and 8 bit integers, two for 16 bit integers and four for
+     * everything else.
+     * @param inOptNum  option number
+     * @param inValue   the value
+     * @throws IllegalArgumentException if the value does not fit
+     */
+    public void setIntOption(final int inOptNum, final long inValue) {
+        final DHCPOptionRegistry.Type type = DHCPOptionRegistry.getType(inOptNum);
+        final int width;
+        switch (type) {
+        case FLAG:
+        case UINT8:
+        case UINT8_LIST:
+            width = 1;
+            break;
+        case UINT16:
+        case UINT16_LIST:
+            width = 2;
+            break;
+        default:
+            width = 4;
+        }
+        final long min = type == DHCPOptionRegistry.Type.INT32 ? Integer.MIN_VALUE : 0;
+        final long max = type == DHCPOptionRegistry.Type.INT32 ? Integer.MAX_VALUE : (1L << (width * 8)) - 1;
+        if (inValue < min || inValue > max) {
+            throw new IllegalArgumentException(inValue + " does not fit in option " + inOptNum + ".");
+        }
+        final byte[] value = new byte[width];
+        for (int i = 0; i < width; i++) {
+            value[i] = (byte) (inValue >>> ((width - 1 - i) * 8));
+        }
+        optionsList.setOption((byte) inOptNum, value);
+    }
+
+    /** Returns a flag option, such as IP forwarding (19).
+     * @param inOptNum  option number
+     * @param inDefault value returned if the option is not set
+     */
+    public boolean getFlagOption(final int inOptNum, final boolean inDefault) {
+        final byte[] value = optionsList.getOption((byte) inOptNum);
+        return value == null || value.length == 0 ? inDefault : value[0] != 0;
+    }
+
+    /** Sets a flag option.
+     * @param inOptNum  option number
+     * @param inValue   the flag
+     */
+    public void setFlagOption(final int inOptNum, final boolean inValue) {
+        optionsList.setOption((byte) inOptNum, new byte[] { (byte) (inValue ? 1 : 0) });
+    }
+
+    /** Returns an IPv4 address option, such as the server identifier (54),
+     * as an int in network order, without creating an InetAddress.  For an
+     * address list this is the first address.
+     * @param inOptNum  option number
+     * @param inDefault value returned if the option is not set or is
+     *        shorter than four octets
+     */
+    public int getInet4Option(final int inOptNum, final int inDefault) {
+        final byte[] value = optionsList.getOption((byte) inOptNum);
+        return value == null || value.length < 4 ? inDefault : Inet4Addresses.toInt(value);
+    }
+
+    /** Sets an IPv4 address option.
+     * @param inOptNum  option number
+     * @param inAddress the address as an int in network order
+     */
+    public void setInet4Option(final int inOptNum, final int inAddress) {
+        optionsList.setOption((byte) inOptNum, Inet4Addresses.toBytes(inAddress));
+    }
+
+    /** Returns an IPv4 address option as an InetAddress; no name lookup is
+     * done.  For an address list this is the first address.
+     * @param inOptNum  option number
+     * @return the address, or null if the option is not set or is shorter
+     *         than four octets
+     */
+    public InetAddress getAddressOption(final int inOptNum) {
+        final byte[] value = optionsList.getOption((byte) inOptNum);
+        if (value == null || value.length < 4) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(Arrays.copyOf(value, 4));
+        } catch (final UnknownHostException e) {
+            throw new IllegalStateException(e);	// four octets are always an address
+        }
+    }
+
+    /** Sets an IPv4 address option.
+     * @param inOptNum  option number
+     * @param inAddress an IPv4 address
+     * @throws IllegalArgumentException if the address is not IPv4
+     */
+    public void setAddressOption(final int inOptNum, final InetAddress inAddress) {
+        setInet4Option(inOptNum, Inet4Addresses.toInt(inAddress));
+    }
+
+    /** Copies an IPv4 address list option, such as the routers (3) or the
+     * domain name servers (6), into an array of ints in network order.
+     * @param inOptNum  option number
+     * @param outAddresses receives as many addresses as fit
+     * @return the number of addresses in the option, which may be more than
+     *         were copied; 0 if it is not set
+     */
+    public int getAddressListOption(final int inOptNum, final int[] outAddresses) {
+        final byte[] value = optionsList.getOption((byte) inOptNum);
+        if (value == null) {
+            return 0;
+        }
+        final int count = value.length / 4;
+        for (int i = 0, n = Math.min(count, outAddresses.length); i < n; i++) {
+            final int at = i * 4;
+            outAddresses[i] = (value[at] & 0xFF) << 24 | (value[at + 1] & 0xFF) << 16 | (value[at + 2] & 0xFF) << 8 | value[at + 3] & 0xFF;
+        }
+        return count;
+    }
+
+    /** Sets an IPv4 address list option.
+     * @param inOptNum  option number
+     * @param inAddresses the addresses as ints in network order
+     */
+    public void setAddressListOption(final int inOptNum, final int... inAddresses) {
+        final byte[] value = new byte[inAddresses.length * 4];
+        for (int i = 0; i < inAddresses.length; i++) {
+            System.arraycopy(Inet4Addresses.toBytes(inAddresses[i]), 0, value, i * 4, 4);
+        }
+        optionsList.setOption((byte) inOptNum, value);
+    }
+
+    /** Returns a text option, such as the host name (12) or the domain
+     * name (15).  Trailing NULs, which some servers send, are dropped.
+     * @param inOptNum  option number
+     * @param inDefault value returned if the option is not set
+     */
+    public String getStringOption(final int inOptNum, final String inDefault) {
+        final byte[] value = optionsList.getOption((byte) inOptNum);
+        if (value == null) {
+            return inDefault;
+        }
+        int length = value.length;
+        while (length > 0 && value[length - 1] == 0) {
+            length--;
+        }
+        return new String(value, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Sets a text option.
+     * @param inOptNum  option number
+     * @param inValue   the text; characters beyond ISO-8859-1 become '?'
+     */
+    public void setStringOption(final int inOptNum, final String inValue) {
+        optionsList.setOption((byte) inOptNum, inValue.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
     public void printMessage() throws IOException {
         final byte[] data = externalize();
         for(int i = 0; i < 100; i++) {
@@ -589,62 +953,87 @@ public class DHCPMessage extends Object {
         optionsList.printList();
     }
 
-    private void setMessageValues(final DHCPMessage inMessage) {
-        op = inMessage.getOp();
-        htype = inMessage.getHtype();
-        hlen = inMessage.getHlen();
-        hops = inMessage.getHops();
-        xid = inMessage.getXid();
-        secs = inMessage.getSecs();
-        flags = inMessage.getFlags();
-        ciaddr = inMessage.getCiaddr();
-        yiaddr = inMessage.getYiaddr();
-        siaddr = inMessage.getSiaddr();
-        giaddr = inMessage.getGiaddr();
-        chaddr = inMessage.getChaddr();
-        sname = inMessage.getSname();
-        file = inMessage.getFile();
+    private static boolean isEmpty(final byte[] field) {
+        for (int i = 0; i < field.length; i++) {
+            if (field[i] != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void readInputStream(final DataInputStream inStream) throws MalformedPacketException {
-        try {
-            op = inStream.readByte();
-            htype = inStream.readByte();
-            hlen = inStream.readByte();
-            hops = inStream.readByte();
-            xid = inStream.readInt();
-            secs = inStream.readShort();
-            flags = inStream.readShort();
-            inStream.readFully(ciaddr, 0, 4);
-            inStream.readFully(yiaddr, 0, 4);
-            inStream.readFully(siaddr, 0, 4);
-            inStream.readFully(giaddr, 0, 4);
-            inStream.readFully(chaddr, 0, 16);
-            inStream.readFully(sname, 0, 64);
-            inStream.readFully(file, 0, 128);
-            final byte[] options = new byte[312];
-            inStream.readFully(options, 0, 312);
-            optionsList.internalize(options);
-        } catch (final IOException e) {
-            throw new MalformedPacketException("Unable to read packet stream.", e);
-        }
+    /**
+     * Copies the header fields into this message's own arrays and shares
+     * the options table copy-on-write.
+     */
+    private void copyFrom(final DHCPMessage inMessage) {
+        op = inMessage.op;
+        htype = inMessage.htype;
+        hlen = inMessage.hlen;
+        hops = inMessage.hops;
+        xid = inMessage.xid;
+        secs = inMessage.secs;
+        flags = inMessage.flags;
+        copyField(inMessage.ciaddr, ciaddr);
+        copyField(inMessage.yiaddr, yiaddr);
+        copyField(inMessage.siaddr, siaddr);
+        copyField(inMessage.giaddr, giaddr);
+        copyField(inMessage.chaddr, chaddr);
+        copyField(inMessage.sname, sname);
+        copyField(inMessage.file, file);
+        optionsList = inMessage.optionsList.copy();
+        maxMessageSize = inMessage.maxMessageSize;
     }
 
-    private static void closeQuietly(final OutputStream stream) {
-        if (stream == null) return;
-        try {
-            stream.close();
-        } catch (final IOException e) {
-            //NOSONAR
+    /**
+     * Copies a value into a header field, truncating it to the field or
+     * padding it with zeros; null clears the field.
+     */
+    private static void copyField(final byte[] from, final byte[] to) {
+        int length = 0;
+        if (from != null) {
+            length = Math.min(from.length, to.length);
+            System.arraycopy(from, 0, to, 0, length);
         }
+        Arrays.fill(to, length, to.length, (byte) 0);
     }
 
-    private static void closeQuietly(final InputStream stream) {
-        if (stream == null) return;
+    /**
+     * Reads exactly one message from a stream: the BOOTP header, the magic
+     * cookie and the options up to the end option, but never more than the
+     * maximum message size, followed by the padding encodeTo() adds up to
+     * the 300 byte minimum.  The stream is left at the next message.
+     */
+    private void readInputStream(final DataInputStream inStream) throws MalformedPacketException {
+        final byte[] data = new byte[maxMessageSize];
+        int length = HEADER_LENGTH + 4;
         try {
-            stream.close();
+            inStream.readFully(data, 0, length);
+            while (length < data.length) {
+                final int code = inStream.readUnsignedByte();
+                data[length++] = (byte) code;
+                if (code == 255) {
+                    break;
+                }
+                if (code == 0 || length == data.length) {
+                    continue;
+                }
+                final int optionLength = inStream.readUnsignedByte();
+                data[length++] = (byte) optionLength;
+                if (optionLength > data.length - length) {
+                    throw new MalformedPacketException(MalformedPacketException.Reason.TRUNCATED_OPTIONS,
+                            "Option " + code + " runs past the maximum message size.", null);
+                }
+                inStream.readFully(data, length, optionLength);
+                length += optionLength;
+            }
+            if (length < MIN_MESSAGE_LENGTH) {
+                inStream.readFully(data, length, MIN_MESSAGE_LENGTH - length);
+                length = MIN_MESSAGE_LENGTH;
+            }
         } catch (final IOException e) {
-            //NOSONAR
+            throw new MalformedPacketException(MalformedPacketException.Reason.UNREADABLE, "Unable to read packet stream.", e);
         }
+        decodeFrom(ByteBuffer.wrap(data, 0, length));
     }
 }
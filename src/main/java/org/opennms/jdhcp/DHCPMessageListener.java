@@ -0,0 +1,20 @@
+package org.opennms.jdhcp;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Callback for DHCP Messages received by a DHCPEventLoop.
+ * Listeners are called on the event loop thread, so they must not block.
+ * @see DHCPEventLoop
+ */
+public interface DHCPMessageListener {
+
+    /**
+     * Called for every well-formed message received on a channel.
+     * @param channel the channel the message arrived on, which can be used to reply
+     * @param message the decoded message; its destination and port are set to
+     *                the sender, so it can be replied to as it is
+     * @param source the address and port the message was sent from
+     */
+    void messageReceived(DHCPChannel channel, DHCPMessage message, InetSocketAddress source);
+}
@@ -0,0 +1,100 @@
+package org.opennms.jdhcp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class is a bounded pool of reusable DHCPMessages, so loops that
+ * receive, answer and send many messages do not allocate a message and
+ * its header arrays for every packet.  A message is leased, used, and
+ * released back to the pool, which resets it for the next lease.
+ * <p>
+ * Like BufferPool, the pool never blocks: lease() creates a message when
+ * none is idle, and release() lets the message go when the pool is full.
+ * The idle messages are kept in stripes of slots; a thread starts looking
+ * in the stripe its id picks, so threads leasing and releasing at once
+ * rarely touch the same slots.  A message may be released by another
+ * thread than the one that leased it.
+ * @see DHCPMessage#reset()
+ */
+public class DHCPMessagePool {
+    private static final int STRIPE_SIZE = 8;
+
+    private final AtomicReferenceArray<DHCPMessage> slots;
+    private final int stripes;
+
+    /**
+     * Creates a pool.
+     * @param inCapacity largest number of idle messages kept, rounded up
+     *        to a multiple of 8
+     */
+    public DHCPMessagePool(final int inCapacity) {
+        if (inCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        stripes = (inCapacity + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        slots = new AtomicReferenceArray<DHCPMessage>(stripes * STRIPE_SIZE);
+    }
+
+    /**
+     * Leases a message from the pool, creating one if none is idle.
+     * @return a message equal to a new DHCPMessage()
+     */
+    public DHCPMessage lease() {
+        final int length = slots.length();
+        final int start = stripe();
+        for (int i = 0; i < length; i++) {
+            final int index = (start + i) % length;
+            final DHCPMessage message = slots.get(index);
+            if (message != null && slots.compareAndSet(index, message, null)) {
+                return message;
+            }
+        }
+        return new DHCPMessage();
+    }
+
+    /**
+     * Resets a message and returns it to the pool.  The message, and any
+     * array obtained from its getters, must not be used after it has been
+     * released.
+     * @param inMessage the message to return, or null
+     */
+    public void release(final DHCPMessage inMessage) {
+        if (inMessage == null) {
+            return;
+        }
+        inMessage.reset();
+        final int length = slots.length();
+        final int start = stripe();
+        for (int i = 0; i < length; i++) {
+            final int index = (start + i) % length;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, inMessage)) {
+                return;
+            }
+        }
+        // the pool is full, let the message go
+    }
+
+    /** Returns the largest number of idle messages kept. */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /** Returns the number of idle messages in the pool. */
+    public int getIdleCount() {
+        int idle = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Returns the first slot of the calling thread's stripe.
+     */
+    private int stripe() {
+        final long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) % stripes) * STRIPE_SIZE;
+    }
+}
@@ -0,0 +1,73 @@
+package org.opennms.jdhcp;
+
+/**
+ * This class is the fixed shape of a probe, such as the DISCOVER a poller
+ * sends to one monitored server, from which the messages actually sent are
+ * derived.  Derived messages differ from the template only in their xid,
+ * secs and chaddr.
+ * <p>
+ * Deriving a message copies the fixed header and shares the template's
+ * options copy-on-write, so no options are encoded, parsed or copied.
+ * A template is immutable and may be shared by any number of threads.
+ * Option values of derived messages are shared with the template: replace
+ * them with setOption() rather than change them in place.
+ * <pre>
+ * final DHCPMessageTemplate discover = new DHCPMessageTemplate(shape);
+ * ...
+ * client.send(discover.newMessage(xid, (short) 0, chaddr), 3, TimeUnit.SECONDS);
+ * </pre>
+ * @see DHCPMessage#copy()
+ */
+public final class DHCPMessageTemplate {
+    private final DHCPMessage prototype;	// never changed after construction
+
+    /**
+     * Creates a template from a message, which is copied, so it may be
+     * changed or reused afterwards.
+     * @param inPrototype the message every derived message starts as,
+     *        including its destination and port
+     */
+    public DHCPMessageTemplate(final DHCPMessage inPrototype) {
+        prototype = inPrototype.copy();
+    }
+
+    /**
+     * Returns a new message equal to the template.
+     */
+    public DHCPMessage newMessage() {
+        return prototype.copy();
+    }
+
+    /**
+     * Returns a new message equal to the template but for its xid.
+     * @param inXid the transaction id
+     */
+    public DHCPMessage newMessage(final int inXid) {
+        final DHCPMessage message = prototype.copy();
+        message.setXid(inXid);
+        return message;
+    }
+
+    /**
+     * Returns a new message equal to the template but for its xid, secs
+     * and client hardware address.
+     * @param inXid the transaction id
+     * @param inSecs seconds elapsed since the client began acquiring an address
+     * @param inChaddr the client hardware address, padded with zeros to
+     *        16 octets; the template's hlen is kept
+     */
+    public DHCPMessage newMessage(final int inXid, final short inSecs, final byte[] inChaddr) {
+        final DHCPMessage message = prototype.copy();
+        message.setXid(inXid);
+        message.setSecs(inSecs);
+        message.setChaddr(inChaddr);
+        return message;
+    }
+
+    /**
+     * Returns the message type of the template, or -1 if it has none.
+     */
+    public int getMessageType() {
+        return prototype.getMessageType();
+    }
+}
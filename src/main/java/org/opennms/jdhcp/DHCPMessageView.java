@@ -0,0 +1,365 @@
+package org.opennms.jdhcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class is a read-only view of a DHCP Message held in a buffer.
+ * Unlike DHCPMessage nothing is copied out of the buffer up front: header
+ * fields are read from their fixed offsets when they are asked for, and the
+ * options area is only indexed on the first option lookup.  A view can be
+ * re-pointed at another buffer with wrap(), so a receive loop that only
+ * looks at the xid, op and message type of each packet does not allocate.
+ * <p>
+ * The view does not change the buffer's position or limit, and is only
+ * valid for as long as the contents of the wrapped buffer are unchanged.
+ * @see DHCPMessage
+ */
+public class DHCPMessageView {
+    private static final int OPTIONS_OFFSET = 236;
+    private static final int MAGIC_COOKIE = 0x63825363;
+
+    private ByteBuffer buffer;
+    private int start;				// absolute index of the op field
+    private int end;				// absolute index past the last byte
+
+    private int[] optionOffsets;		// absolute index of first value byte, 0 if absent
+    private int[] optionLengths;		// total length of the option value
+    private final long[] fragmented = new long[4];	// options split over several entries
+    private int overload;			// option 52: 1 = file, 2 = sname carry options
+    private boolean indexed;
+
+    /** Creates an empty view; wrap() must be called before it is used. */
+    public DHCPMessageView() {
+    }
+
+    /** Creates a view over the message between the buffer's position and limit.
+     * @param inBuffer  the buffer holding a received DHCP message
+     */
+    public DHCPMessageView(final ByteBuffer inBuffer) throws MalformedPacketException {
+        wrap(inBuffer);
+    }
+
+    /** Points this view at the message between the buffer's position and
+     * limit, discarding any option index built for the previous message.
+     * @param inBuffer  the buffer holding a received DHCP message
+     * @return this view
+     * @throws MalformedPacketException if the buffer is shorter than the BOOTP header
+     */
+    public DHCPMessageView wrap(final ByteBuffer inBuffer) throws MalformedPacketException {
+        if (inBuffer.remaining() < OPTIONS_OFFSET) {
+            throw new MalformedPacketException(MalformedPacketException.Reason.SHORT_HEADER, "Packet is shorter than the BOOTP header.", null);
+        }
+        buffer = inBuffer;
+        start = inBuffer.position();
+        end = inBuffer.limit();
+        indexed = false;
+        return this;
+    }
+
+    /** Points this view at the message held in a byte array.
+     * @param ibuf  the byte array holding a received DHCP message
+     * @return this view
+     */
+    public DHCPMessageView wrap(final byte[] ibuf) throws MalformedPacketException {
+        return wrap(ByteBuffer.wrap(ibuf));
+    }
+
+    /** Returns the wrapped buffer. */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /** Decodes the viewed message into a new DHCPMessage object.
+     * @return a DHCPMessage holding a copy of the viewed message
+     */
+    public DHCPMessage toMessage() throws MalformedPacketException {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(end).position(start);
+        return new DHCPMessage().decodeFrom(duplicate);
+    }
+
+    /**************************************************************
+     * get* accessor functions read straight from the buffer      *
+     **************************************************************/
+
+    /** Get message Op code / message type. */
+    public byte getOp() {
+        return buffer.get(start);
+    }
+
+    /** Get hardware address type.*/
+    public byte getHtype() {
+        return buffer.get(start + 1);
+    }
+
+    /** Get hardware address length.*/
+    public byte getHlen() {
+        return buffer.get(start + 2);
+    }
+
+    /** Get hops field.*/
+    public byte getHops() {
+        return buffer.get(start + 3);
+    }
+
+    /** Get transaction ID.*/
+    public int getXid() {
+        return getInt(start + 4);
+    }
+
+    /** Get seconds elapsed since client began address acquisition or
+	renewal process.*/
+    public short getSecs() {
+        return getShort(start + 8);
+    }
+
+    /** Get flags field.*/
+    public short getFlags() {
+        return getShort(start + 10);
+    }
+
+    /** Get client IP address.*/
+    public byte[] getCiaddr() {
+        return copy(12, 4);
+    }
+
+    /** Get 'your' (client) IP address.*/
+    public byte[] getYiaddr() {
+        return copy(16, 4);
+    }
+
+    /** Get address of next server to use in bootstrap.*/
+    public byte[] getSiaddr() {
+        return copy(20, 4);
+    }
+
+    /** Get relay agent IP address.*/
+    public byte[] getGiaddr() {
+        return copy(24, 4);
+    }
+
+    /** Get client hardware address.*/
+    public byte[] getChaddr() {
+        return copy(28, 16);
+    }
+
+    /** Get optional server host name; empty if the field carries options.*/
+    public byte[] getSname() {
+        index();
+        if ((overload & 2) != 0) {
+            return new byte[64];
+        }
+        return copy(44, 64);
+    }
+
+    /** Get boot file name; empty if the field carries options.*/
+    public byte[] getFile() {
+        index();
+        if ((overload & 1) != 0) {
+            return new byte[128];
+        }
+        return copy(108, 128);
+    }
+
+    /** Compares the client hardware address with the first inLength bytes
+     * of inChaddr without copying it out of the buffer.
+     * @param inChaddr  client hardware address to compare with
+     * @param inLength  number of bytes to compare, at most 16
+     * @return true if the addresses match
+     */
+    public boolean chaddrEquals(final byte[] inChaddr, final int inLength) {
+        for (int i = 0; i < inLength; i++) {
+            if (buffer.get(start + 28 + i) != inChaddr[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**************************************************************
+     * option accessors, backed by a lazily built offset index    *
+     **************************************************************/
+
+    /** Report whether or not the input option is set
+     * @param inOptNum  option number
+     */
+    public boolean isOptSet(final int inOptNum) {
+        index();
+        return optionOffsets[inOptNum & 0xFF] != 0;
+    }
+
+    /** Returns the length of the specified option, or -1 if it is not set.
+     * @param inOptNum  option number
+     */
+    public int getOptionLength(final int inOptNum) {
+        index();
+        final int code = inOptNum & 0xFF;
+        return optionOffsets[code] == 0 ? -1 : optionLengths[code];
+    }
+
+    /** Returns a copy of the specified DHCP option. Null is returned if
+     * option is not set.
+     * @param inOptNum  option number
+     */
+    public byte[] getOption(final int inOptNum) {
+        final int length = getOptionLength(inOptNum);
+        if (length < 0) {
+            return null; //NOSONAR
+        }
+        final byte[] value = new byte[length];
+        getOption(inOptNum, value, 0);
+        return value;
+    }
+
+    /** Copies the specified DHCP option into a caller supplied array.
+     * @param inOptNum  option number
+     * @param outValue  array to copy the option value into
+     * @param inOffset  offset in outValue to copy to
+     * @return the length of the option, or -1 if it is not set
+     */
+    public int getOption(final int inOptNum, final byte[] outValue, final int inOffset) {
+        final int length = getOptionLength(inOptNum);
+        if (length < 0) {
+            return -1;
+        }
+        final int code = inOptNum & 0xFF;
+        if ((fragmented[code >>> 6] & (1L << code)) == 0) {
+            get(optionOffsets[code], outValue, inOffset, length);
+        } else {
+            // walk the option areas again, concatenating every entry (RFC 3396)
+            int copied = copyArea(code, start + OPTIONS_OFFSET + 4, end, outValue, inOffset, 0);
+            if ((overload & 1) != 0) {
+                copied = copyArea(code, start + 108, start + 236, outValue, inOffset, copied);
+            }
+            if ((overload & 2) != 0) {
+                copyArea(code, start + 44, start + 108, outValue, inOffset, copied);
+            }
+        }
+        return length;
+    }
+
+    /** Returns the DHCP message type held in option 53, or -1 if the option
+     * is not set.
+     */
+    public int getMessageType() {
+        index();
+        if (optionOffsets[53] == 0 || optionLengths[53] < 1) {
+            return -1;
+        }
+        return buffer.get(optionOffsets[53]) & 0xFF;
+    }
+
+    /**
+     * Builds the option index on first use, covering the options field and
+     * any sname or file field it overloads.  Options that run past the end
+     * of their field are ignored, as is everything after them.
+     */
+    private void index() {
+        if (indexed) {
+            return;
+        }
+        if (optionOffsets == null) {
+            optionOffsets = new int[256];
+            optionLengths = new int[256];
+        } else {
+            Arrays.fill(optionOffsets, 0);
+            Arrays.fill(optionLengths, 0);
+        }
+        Arrays.fill(fragmented, 0L);
+        overload = 0;
+
+        final int cookie = start + OPTIONS_OFFSET;
+        if (cookie + 4 <= end && getInt(cookie) == MAGIC_COOKIE) {
+            indexArea(cookie + 4, end);
+            if (optionOffsets[52] != 0) {
+                overload = optionLengths[52] > 0 ? buffer.get(optionOffsets[52]) & 3 : 0;
+                optionOffsets[52] = 0;
+                if ((overload & 1) != 0) {
+                    indexArea(start + 108, start + 236);
+                }
+                if ((overload & 2) != 0) {
+                    indexArea(start + 44, start + 108);
+                }
+            }
+        }
+        indexed = true;
+    }
+
+    private void indexArea(final int from, final int to) {
+        int pos = from;
+        while (pos < to) {
+            final int code = buffer.get(pos++) & 0xFF;
+            if (code == 255) {
+                break;
+            }
+            if (code == 0) {
+                continue;
+            }
+            if (pos >= to) {
+                break;
+            }
+            final int length = buffer.get(pos++) & 0xFF;
+            if (pos + length > to) {
+                break;
+            }
+            if (optionOffsets[code] == 0) {
+                optionOffsets[code] = pos;
+            } else {
+                fragmented[code >>> 6] |= 1L << code;
+            }
+            optionLengths[code] += length;
+            pos += length;
+        }
+    }
+
+    private int copyArea(final int code, final int from, final int to, final byte[] dst, final int offset, final int copied) {
+        int total = copied;
+        int pos = from;
+        while (pos < to) {
+            final int entryCode = buffer.get(pos++) & 0xFF;
+            if (entryCode == 255) {
+                break;
+            }
+            if (entryCode == 0) {
+                continue;
+            }
+            if (pos >= to) {
+                break;
+            }
+            final int entryLength = buffer.get(pos++) & 0xFF;
+            if (pos + entryLength > to) {
+                break;
+            }
+            if (entryCode == code) {
+                get(pos, dst, offset + total, entryLength);
+                total += entryLength;
+            }
+            pos += entryLength;
+        }
+        return total;
+    }
+
+    private byte[] copy(final int offset, final int length) {
+        final byte[] value = new byte[length];
+        get(start + offset, value, 0, length);
+        return value;
+    }
+
+    private void get(final int index, final byte[] dst, final int offset, final int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = buffer.get(index + i);
+        }
+    }
+
+    private int getInt(final int index) {
+        return ((buffer.get(index) & 0xFF) << 24)
+            | ((buffer.get(index + 1) & 0xFF) << 16)
+            | ((buffer.get(index + 2) & 0xFF) << 8)
+            | (buffer.get(index + 3) & 0xFF);
+    }
+
+    private short getShort(final int index) {
+        return (short) (((buffer.get(index) & 0xFF) << 8) | (buffer.get(index + 1) & 0xFF));
+    }
+}
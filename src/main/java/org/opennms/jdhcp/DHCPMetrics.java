@@ -0,0 +1,101 @@
+package org.opennms.jdhcp;
+
+import java.net.InetAddress;
+
+/**
+ * This interface receives instrumentation events from DHCPSocket,
+ * DHCPChannel and DHCPClient.  Register an implementation, such as
+ * DHCPStatistics, with setMetrics(); by default every event goes to NOOP.
+ * <p>
+ * Events are reported on the sending, receiving and timer threads as they
+ * happen, so implementations must be thread-safe and cheap.  Arguments are
+ * primitives or objects the caller already holds, so reporting to NOOP
+ * allocates nothing.
+ * <p>
+ * Message types are the values of option 53, DHCPMessage.DISCOVER to
+ * DHCPMessage.INFORM, or 0 when the message has no type or it is unknown.
+ * @see DHCPStatistics
+ */
+public interface DHCPMetrics {
+
+    /**
+     * Metrics that ignore every event.
+     */
+    DHCPMetrics NOOP = new DHCPMetrics() {
+        public void messageSent(final int inMessageType, final int inLength) {
+        }
+
+        public void messageReceived(final int inMessageType, final int inLength) {
+        }
+
+        public void decodeFailed(final MalformedPacketException.Reason inReason, final int inLength) {
+        }
+
+        public void receiveTimedOut() {
+        }
+
+        public void requestTimedOut(final InetAddress inServer) {
+        }
+
+        public void replyReceived(final InetAddress inServer, final long inNanos) {
+        }
+    };
+
+    /**
+     * A message was sent.
+     * @param inMessageType the message type, or 0
+     * @param inLength the encoded length in bytes
+     */
+    void messageSent(int inMessageType, int inLength);
+
+    /**
+     * A message could not be encoded or sent, and was dropped.  Does
+     * nothing unless overridden, so implementations written before it
+     * keep compiling.
+     * @param inMessageType the message type, or 0
+     */
+    default void sendFailed(final int inMessageType) {
+    }
+
+    /**
+     * A message was received and decoded.
+     * @param inMessageType the message type, or 0
+     * @param inLength the datagram's length in bytes
+     */
+    void messageReceived(int inMessageType, int inLength);
+
+    /**
+     * A datagram was received but could not be decoded, and was dropped.
+     * @param inReason what was wrong with it
+     * @param inLength the datagram's length in bytes
+     */
+    void decodeFailed(MalformedPacketException.Reason inReason, int inLength);
+
+    /**
+     * A datagram was received but rejected by the packet filter, and was
+     * dropped without being decoded.  Does nothing unless overridden, so
+     * implementations written before packet filters keep compiling.
+     * @param inLength the datagram's length in bytes
+     * @see DHCPPacketFilter
+     */
+    default void packetFiltered(final int inLength) {
+    }
+
+    /**
+     * A blocking receive gave up after its socket timeout.
+     */
+    void receiveTimedOut();
+
+    /**
+     * A DHCPClient request got no reply before its deadline.
+     * @param inServer the address the request was sent to
+     */
+    void requestTimedOut(InetAddress inServer);
+
+    /**
+     * A DHCPClient request was answered.
+     * @param inServer the address the request was sent to
+     * @param inNanos time from the first transmission to the reply
+     */
+    void replyReceived(InetAddress inServer, long inNanos);
+}
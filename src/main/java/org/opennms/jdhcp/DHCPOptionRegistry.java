@@ -0,0 +1,194 @@
+package org.opennms.jdhcp;
+
+/**
+ * This class describes the DHCP options of RFC 2132: the name of each
+ * option code and the type of value it carries on the wire.  The typed
+ * option accessors of DHCPMessage use it to pick the width of integers
+ * and to check the length of values; codes it does not know carry opaque
+ * bytes.
+ * @see DHCPMessage#getIntOption(int, long)
+ */
+public final class DHCPOptionRegistry {
+
+    /**
+     * The wire type of an option value.
+     */
+    public enum Type {
+        /** one octet, 0 or 1 */
+        FLAG(1, 1, true),
+        /** unsigned 8 bit integer */
+        UINT8(1, 1, true),
+        /** unsigned 16 bit integer in network order */
+        UINT16(2, 2, true),
+        /** unsigned 32 bit integer in network order */
+        UINT32(4, 4, true),
+        /** signed 32 bit integer in network order */
+        INT32(4, 4, true),
+        /** one IPv4 address */
+        INET4(4, 4, true),
+        /** one or more IPv4 addresses */
+        INET4_LIST(4, 4, false),
+        /** one or more pairs of IPv4 addresses, such as address and mask */
+        INET4_PAIR_LIST(8, 8, false),
+        /** one or more unsigned 8 bit integers */
+        UINT8_LIST(1, 1, false),
+        /** one or more unsigned 16 bit integers */
+        UINT16_LIST(2, 2, false),
+        /** NVT ASCII text */
+        STRING(1, 1, false),
+        /** opaque octets */
+        BYTES(0, 1, false);
+
+        private final int minLength;
+        private final int unit;
+        private final boolean fixed;
+
+        Type(final int inMinLength, final int inUnit, final boolean inFixed) {
+            minLength = inMinLength;
+            unit = inUnit;
+            fixed = inFixed;
+        }
+
+        /** Returns the shortest valid value in octets. */
+        public int getMinLength() {
+            return minLength;
+        }
+
+        /**
+         * Reports whether or not a value of the given length is valid
+         * for this type.
+         * @param inLength length of the value in octets
+         */
+        public boolean isValidLength(final int inLength) {
+            if (fixed) {
+                return inLength == minLength;
+            }
+            return inLength >= minLength && inLength % unit == 0;
+        }
+    }
+
+    private static final Type[] TYPES = new Type[256];
+    private static final String[] NAMES = new String[256];
+
+    static {
+        define(1, "Subnet Mask", Type.INET4);
+        define(2, "Time Offset", Type.INT32);
+        define(3, "Router", Type.INET4_LIST);
+        define(4, "Time Server", Type.INET4_LIST);
+        define(5, "Name Server", Type.INET4_LIST);
+        define(6, "Domain Name Server", Type.INET4_LIST);
+        define(7, "Log Server", Type.INET4_LIST);
+        define(8, "Cookie Server", Type.INET4_LIST);
+        define(9, "LPR Server", Type.INET4_LIST);
+        define(10, "Impress Server", Type.INET4_LIST);
+        define(11, "Resource Location Server", Type.INET4_LIST);
+        define(12, "Host Name", Type.STRING);
+        define(13, "Boot File Size", Type.UINT16);
+        define(14, "Merit Dump File", Type.STRING);
+        define(15, "Domain Name", Type.STRING);
+        define(16, "Swap Server", Type.INET4);
+        define(17, "Root Path", Type.STRING);
+        define(18, "Extensions Path", Type.STRING);
+        define(19, "IP Forwarding", Type.FLAG);
+        define(20, "Non-Local Source Routing", Type.FLAG);
+        define(21, "Policy Filter", Type.INET4_PAIR_LIST);
+        define(22, "Maximum Datagram Reassembly Size", Type.UINT16);
+        define(23, "Default IP Time-to-live", Type.UINT8);
+        define(24, "Path MTU Aging Timeout", Type.UINT32);
+        define(25, "Path MTU Plateau Table", Type.UINT16_LIST);
+        define(26, "Interface MTU", Type.UINT16);
+        define(27, "All Subnets are Local", Type.FLAG);
+        define(28, "Broadcast Address", Type.INET4);
+        define(29, "Perform Mask Discovery", Type.FLAG);
+        define(30, "Mask Supplier", Type.FLAG);
+        define(31, "Perform Router Discovery", Type.FLAG);
+        define(32, "Router Solicitation Address", Type.INET4);
+        define(33, "Static Route", Type.INET4_PAIR_LIST);
+        define(34, "Trailer Encapsulation", Type.FLAG);
+        define(35, "ARP Cache Timeout", Type.UINT32);
+        define(36, "Ethernet Encapsulation", Type.FLAG);
+        define(37, "TCP Default TTL", Type.UINT8);
+        define(38, "TCP Keepalive Interval", Type.UINT32);
+        define(39, "TCP Keepalive Garbage", Type.FLAG);
+        define(40, "Network Information Service Domain", Type.STRING);
+        define(41, "Network Information Servers", Type.INET4_LIST);
+        define(42, "Network Time Protocol Servers", Type.INET4_LIST);
+        define(43, "Vendor Specific Information", Type.BYTES);
+        define(44, "NetBIOS over TCP/IP Name Server", Type.INET4_LIST);
+        define(45, "NetBIOS over TCP/IP Datagram Distribution Server", Type.INET4_LIST);
+        define(46, "NetBIOS over TCP/IP Node Type", Type.UINT8);
+        define(47, "NetBIOS over TCP/IP Scope", Type.STRING);
+        define(48, "X Window System Font Server", Type.INET4_LIST);
+        define(49, "X Window System Display Manager", Type.INET4_LIST);
+        define(50, "Requested IP Address", Type.INET4);
+        define(51, "IP Address Lease Time", Type.UINT32);
+        define(52, "Option Overload", Type.UINT8);
+        define(53, "DHCP Message Type", Type.UINT8);
+        define(54, "Server Identifier", Type.INET4);
+        define(55, "Parameter Request List", Type.UINT8_LIST);
+        define(56, "Message", Type.STRING);
+        define(57, "Maximum DHCP Message Size", Type.UINT16);
+        define(58, "Renewal (T1) Time Value", Type.UINT32);
+        define(59, "Rebinding (T2) Time Value", Type.UINT32);
+        define(60, "Vendor class identifier", Type.BYTES);
+        define(61, "Client-identifier", Type.BYTES);
+        define(64, "Network Information Service+ Domain", Type.STRING);
+        define(65, "Network Information Service+ Servers", Type.INET4_LIST);
+        define(66, "TFTP server name", Type.STRING);
+        define(67, "Bootfile name", Type.STRING);
+        define(68, "Mobile IP Home Agent", Type.BYTES);	// a list of addresses, possibly empty
+        define(69, "Simple Mail Transport Protocol (SMTP) Server", Type.INET4_LIST);
+        define(70, "Post Office Protocol (POP3) Server", Type.INET4_LIST);
+        define(71, "Network News Transport Protocol (NNTP) Server", Type.INET4_LIST);
+        define(72, "Default World Wide Web (WWW) Server", Type.INET4_LIST);
+        define(73, "Default Finger Server", Type.INET4_LIST);
+        define(74, "Default Internet Relay Chat (IRC) Server", Type.INET4_LIST);
+        define(75, "StreetTalk Server", Type.INET4_LIST);
+        define(76, "StreetTalk Directory Assistance (STDA) Server", Type.INET4_LIST);
+    }
+
+    private DHCPOptionRegistry() {
+    }
+
+    private static void define(final int code, final String name, final Type type) {
+        TYPES[code] = type;
+        NAMES[code] = name;
+    }
+
+    /**
+     * Returns the wire type of an option.
+     * @param inOptNum option number
+     * @return the option's type, BYTES if RFC 2132 does not define it
+     */
+    public static Type getType(final int inOptNum) {
+        final Type type = TYPES[inOptNum & 0xFF];
+        return type == null ? Type.BYTES : type;
+    }
+
+    /**
+     * Returns the RFC 2132 name of an option, such as "Subnet Mask".
+     * @param inOptNum option number
+     * @return the option's name, or "Option n" if RFC 2132 does not define it
+     */
+    public static String getName(final int inOptNum) {
+        final String name = NAMES[inOptNum & 0xFF];
+        return name == null ? "Option " + (inOptNum & 0xFF) : name;
+    }
+
+    /**
+     * Reports whether or not RFC 2132 defines an option.
+     * @param inOptNum option number
+     */
+    public static boolean isDefined(final int inOptNum) {
+        return TYPES[inOptNum & 0xFF] != null;
+    }
+
+    /**
+     * Reports whether or not a value has a valid length for its option.
+     * @param inOptNum option number
+     * @param inLength length of the value in octets
+     */
+    public static boolean isValidLength(final int inOptNum, final int inLength) {
+        return getType(inOptNum).isValidLength(inLength);
+    }
+}
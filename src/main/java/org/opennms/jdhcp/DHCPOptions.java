@@ -1,33 +1,49 @@
 package org.opennms.jdhcp;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
- * This class represents a linked list of options for a DHCP message.
+ * This class represents the table of options for a DHCP message.
  * Its purpose is to ease option handling such as add, remove, or change.
+ * Option codes index straight into a 256 slot table, with a bitmap of the
+ * codes that are set, so nothing is boxed or hashed on the lookup path.
+ * <p>
+ * copy() is cheap: the copy shares the table with the original until
+ * either of them is changed, and only then is the table itself copied.
+ * An empty table shares a static empty table the same way, so neither an
+ * empty message nor an unchanged copy allocates a table of its own.
+ * <p>
+ * A DHCPOptions object is not safe for use by several threads at once; use
+ * {@link #synchronizedOptions()} when one has to be shared.
  * @author Jason Goldschmidt 
  */
 public class DHCPOptions {
 
-    /**
-     *This inner class represent an entry in the Option Table
-     */
+    private static final byte[][] EMPTY_TABLE = new byte[256][];
+    private static final long[] EMPTY_PRESENT = new long[4];
 
-    private static class DHCPOptionsEntry {
-        protected byte code;
-        protected byte length;
-        protected byte[] content;
+    private byte[][] optionsTable = EMPTY_TABLE;
+    private long[] present = EMPTY_PRESENT;	// bitmap of set option codes
+    private int count;
+    private boolean shared = true;	// optionsTable and present are also used elsewhere
 
-        public DHCPOptionsEntry(final byte entryCode, final byte entryLength, final byte[] entryContent) {
-            code = entryCode;
-            length = entryLength;
-            content = entryContent;
-        }
+    /**
+     * Creates an empty options table.
+     */
+    public DHCPOptions() {
     }
 
-    private Map<Byte, DHCPOptionsEntry> optionsTable = new ConcurrentHashMap<Byte,DHCPOptionsEntry>();
+    /**
+     * Returns an options table whose methods are synchronized, for callers
+     * that explicitly need to share one between threads.
+     * @return a new, empty, synchronized options table
+     */
+    public static DHCPOptions synchronizedOptions() {
+        return new SynchronizedDHCPOptions();
+    }
 
     /**
      * Removes option with specified bytecode
@@ -35,7 +51,13 @@ public class DHCPOptions {
      */
 
     public void removeOption(final byte entryCode) {
-        optionsTable.remove(entryCode);
+        final int code = entryCode & 0xFF;
+        if (optionsTable[code] != null) {
+            own();
+            optionsTable[code] = null;
+            present[code >>> 6] &= ~(1L << code);
+            count--;
+        }
     }
 
 
@@ -45,7 +67,7 @@ public class DHCPOptions {
      * @return true if option is set, otherwise false
      */
     public boolean contains(final byte entryCode) {
-        return optionsTable.containsKey(entryCode);
+        return optionsTable[entryCode & 0xFF] != null;
     }
 
     /**
@@ -53,7 +75,7 @@ public class DHCPOptions {
      * @return true if there are no options set, otherwise false
      */
     public boolean isEmpty() {
-        return optionsTable.isEmpty();
+        return count == 0;
     }
 
     /**
@@ -63,10 +85,7 @@ public class DHCPOptions {
      *         null is returned if option is not set.
      */
     public byte[] getOption(final byte entryCode) {
-        if (this.contains(entryCode)) {
-            return optionsTable.get(entryCode).content;
-        }
-        return null; //NOSONAR
+        return optionsTable[entryCode & 0xFF];
     }
 
     /**
@@ -75,75 +94,427 @@ public class DHCPOptions {
      * @param value[] Content of node option
      */
     public void setOption (final byte entryCode, final byte[] value) {
-        optionsTable.put(entryCode, new DHCPOptionsEntry(entryCode, (byte)value.length, value));
+        if (value == null) {
+            removeOption(entryCode);
+            return;
+        }
+        final int code = entryCode & 0xFF;
+        own();
+        if (optionsTable[code] == null) {
+            present[code >>> 6] |= 1L << code;
+            count++;
+        }
+        optionsTable[code] = value;
     }
 
     /**
-     * Returns the option value of a specified option code in a byte array
-     * @param length Length of option content
-     * @param position Location in array of option node
-     * @param options[] The byte array of options
-     * @return byte array containing the value for the option
+     * Removes all options from the table.
      */
-    private byte[] getArrayOption(final int length, final int position, final byte[] options) throws MalformedPacketException {
-        final byte[] value = new byte[length];
-        try {
-            System.arraycopy(options, position, value, 0, length);
-        } catch (final Exception e) {
-            throw new MalformedPacketException(e);
+    public void clear() {
+        if (shared) {
+            optionsTable = EMPTY_TABLE;	// drop the shared table rather than copy it
+            present = EMPTY_PRESENT;
+            count = 0;
+            return;
+        }
+        for (int word = 0; word < present.length; word++) {
+            long bits = present[word];
+            while (bits != 0) {
+                optionsTable[(word << 6) | Long.numberOfTrailingZeros(bits)] = null;
+                bits &= bits - 1;
+            }
+            present[word] = 0L;
+        }
+        count = 0;
+    }
+
+    /**
+     * Returns a copy of this table.  The copy shares the table with this
+     * one until either is changed.  Option values are shared, just as
+     * setOption() keeps the caller's array, so replace a value with
+     * setOption() rather than change it in place.  The copy of a
+     * synchronized table is not synchronized.
+     * @return a new table holding the same options
+     */
+    public DHCPOptions copy() {
+        if (!shared) {
+            shared = true;	// only written when needed, so a table nobody changes can be copied by any thread
         }
-        return value;
+        final DHCPOptions copy = new DHCPOptions();
+        copy.optionsTable = optionsTable;
+        copy.present = present;
+        copy.count = count;
+        return copy;
     }
 
+    /**
+     * Gives this object its own table before it is changed.
+     */
+    private void own() {
+        if (shared) {
+            optionsTable = optionsTable.clone();
+            present = present.clone();
+            shared = false;
+        }
+    }
 
     /**
-     * Converts an options byte array to a linked list
+     * Converts an options byte array to the options table
      * @param optionsArray[] The byte array representation of the options list
      */
     public void internalize(final byte[] optionsArray) throws MalformedPacketException {
-        int pos = 4;		// ignore vendor magic cookie
-        byte code;
-        byte length;
-        byte[] value;
+        decodeFrom(ByteBuffer.wrap(optionsArray));
+    }
 
-        while (pos < optionsArray.length && optionsArray[pos] != (byte) 255) { // until end option
-            code = optionsArray[pos++];
-            length = optionsArray[pos++];
-            value = getArrayOption(length, pos, optionsArray);
-            setOption(code, value);
-            pos += length;	// increment position pointer
+    /**
+     * Reads the options area (starting with the vendor magic cookie) from the
+     * buffer's position up to its limit, replacing the contents of the table.
+     * An option that appears more than once is reassembled by concatenating
+     * its values in order (RFC 3396).  If the vendor magic cookie is missing
+     * the area is not a DHCP options area and the table is left empty.  On
+     * return the buffer's position is just past the end option, or at its
+     * limit if no end option was found.
+     * @param buffer the buffer to read from
+     */
+    public void decodeFrom(final ByteBuffer buffer) throws MalformedPacketException {
+        clear();
+        if (buffer.remaining() < 4
+                || buffer.get() != (byte) 99 || buffer.get() != (byte) 130
+                || buffer.get() != (byte) 83 || buffer.get() != (byte) 99) {
+            return;
         }
+        decodeArea(buffer);
     }
 
     /**
-     * Converts a linked options list to a byte array
+     * Reads options from an overloaded sname or file field (RFC 2131 option
+     * 52), appending to the options already in the table.
+     * @param buffer the field's contents, which carry no magic cookie
+     */
+    void decodeOverloadedArea(final ByteBuffer buffer) throws MalformedPacketException {
+        decodeArea(buffer);
+    }
+
+    private void decodeArea(final ByteBuffer buffer) throws MalformedPacketException {
+        own();
+        try {
+            while (buffer.hasRemaining()) {
+                final byte code = buffer.get();
+                if (code == (byte) 255) {	// end option
+                    break;
+                }
+                if (code == 0) {		// pad option has no length octet
+                    continue;
+                }
+                final int length = buffer.get() & 0xFF;
+                final byte[] previous = optionsTable[code & 0xFF];
+                if (previous == null) {
+                    final byte[] value = new byte[length];
+                    buffer.get(value, 0, length);
+                    setOption(code, value);
+                } else {
+                    // continuation of a long option (RFC 3396)
+                    final byte[] value = new byte[previous.length + length];
+                    System.arraycopy(previous, 0, value, 0, previous.length);
+                    buffer.get(value, previous.length, length);
+                    optionsTable[code & 0xFF] = value;
+                }
+            }
+        } catch (final BufferUnderflowException e) {
+            throw new MalformedPacketException(MalformedPacketException.Reason.TRUNCATED_OPTIONS, "Options area is truncated.", e);
+        }
+    }
+
+    /**
+     * Converts the options table to a byte array
      * @return array representation of optionsTable
      */
     public byte[] externalize() {
-        final byte[] options = new byte[312];
-
-        options[0] = (byte) 99;    // insert vendor magic cookie
-        options[1] = (byte) 130;
-        options[2] = (byte) 83;
-        options[3] = (byte) 99;
-
-        int position = 4;
-        for (final Iterator<DHCPOptionsEntry> e = optionsTable.values().iterator(); e.hasNext(); ) {
-            final DHCPOptionsEntry entry = e.next();
-            options[position++] = entry.code;
-            options[position++] = entry.length;
-            for(int i = 0; i < entry.length; ++i) {
-                options[position++] = entry.content[i];
+        final byte[] options = new byte[getEncodedLength()];
+        encodeTo(ByteBuffer.wrap(options));
+        return options;
+    }
+
+    /**
+     * Returns the number of bytes encodeTo() will write: the vendor magic
+     * cookie, every option split into entries of at most 255 bytes, and the
+     * end option.
+     * @return the encoded length of the options area
+     */
+    public int getEncodedLength() {
+        int length = 5;
+        for (int word = 0; word < present.length; word++) {
+            long bits = present[word];
+            while (bits != 0) {
+                final int code = (word << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (isEncoded(code)) {
+                    length += getEncodedLength(optionsTable[code].length);
+                }
             }
         }
-        options[position] = (byte) 255;  // insert end option
-        return options;
+        return length;
+    }
+
+    /**
+     * Writes the vendor magic cookie, the options and the end option into
+     * the buffer at its position.  Options longer than 255 bytes are split
+     * into several consecutive entries with the same code (RFC 3396).
+     * @param buffer the buffer to write to
+     * @throws java.nio.BufferOverflowException if the options do not fit
+     */
+    public void encodeTo(final ByteBuffer buffer) {
+        putCookie(buffer);
+
+        // the message type goes first, the rest in ascending code order
+        if (optionsTable[53] != null) {
+            putOption(buffer, 53, optionsTable[53]);
+        }
+        for (int word = 0; word < present.length; word++) {
+            long bits = present[word];
+            while (bits != 0) {
+                final int code = (word << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (code != 53 && isEncoded(code)) {
+                    putOption(buffer, code, optionsTable[code]);
+                }
+            }
+        }
+        buffer.put((byte) 255);  // insert end option
+    }
+
+    /**
+     * Writes the options when they do not fit in the options field, spilling
+     * into the file and then the sname field of the message and announcing
+     * that with an option overload (52) entry (RFC 2131, RFC 3396).  The
+     * header, including the fields that may be used, must already have been
+     * written; those fields are overwritten in place.  Options of up to 255
+     * bytes are never split between fields, longer ones are split wherever a
+     * field fills up.  On return the buffer's position is just past the end
+     * option of the options field.
+     * @param buffer the buffer holding the message
+     * @param start absolute index of the message's op field
+     * @param maxLength the largest allowed options field, including the cookie
+     * @param useFile true if the file field is free to carry options
+     * @param useSname true if the sname field is free to carry options
+     * @throws java.nio.BufferOverflowException if the options do not fit
+     */
+    void encodeOverloaded(final ByteBuffer buffer, final int start, final int maxLength,
+            final boolean useFile, final boolean useSname) {
+        putCookie(buffer);
+        final int overload = buffer.position() + 2;
+        buffer.put((byte) 52).put((byte) 1).put((byte) 0);
+
+        // options field, file, sname; each limit leaves room for an end option
+        final OverloadWriter writer = new OverloadWriter(buffer);
+        writer.addArea(buffer.position(), buffer.position() - 7 + maxLength - 1);
+        if (useFile) {
+            writer.addArea(start + 108, start + 108 + 128 - 1);
+        }
+        if (useSname) {
+            writer.addArea(start + 44, start + 44 + 64 - 1);
+        }
+
+        if (optionsTable[53] != null) {
+            writer.write(53, optionsTable[53]);
+        }
+        for (int word = 0; word < present.length; word++) {
+            long bits = present[word];
+            while (bits != 0) {
+                final int code = (word << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (code != 53 && isEncoded(code)) {
+                    writer.write(code, optionsTable[code]);
+                }
+            }
+        }
+        final int used = writer.finish();
+
+        int value = 0;
+        for (int area = 1; area < used; area++) {
+            value |= useFile && area == 1 ? 1 : 2;
+        }
+        if (value == 0) {
+            // everything fitted after all, blank the overload entry with pads
+            buffer.put(overload - 2, (byte) 0).put(overload - 1, (byte) 0).put(overload, (byte) 0);
+        } else {
+            buffer.put(overload, (byte) value);
+        }
+    }
+
+    /**
+     * Codes that are never taken from the table when encoding: pad and end
+     * have no value, and option overload is computed by the encoder.
+     */
+    private static boolean isEncoded(final int code) {
+        return code != 0 && code != 52 && code != 255;
+    }
+
+    private static int getEncodedLength(final int length) {
+        if (length == 0) {
+            return 2;
+        }
+        return length + 2 * ((length + 254) / 255);
+    }
+
+    private static void putCookie(final ByteBuffer buffer) {
+        buffer.put((byte) 99);    // insert vendor magic cookie
+        buffer.put((byte) 130);
+        buffer.put((byte) 83);
+        buffer.put((byte) 99);
+    }
+
+    private static void putOption(final ByteBuffer buffer, final int code, final byte[] value) {
+        int offset = 0;
+        do {
+            final int length = Math.min(255, value.length - offset);
+            buffer.put((byte) code);
+            buffer.put((byte) length);
+            buffer.put(value, offset, length);
+            offset += length;
+        } while (offset < value.length);
+    }
+
+    /**
+     * Fills the options field, file and sname in turn with absolute puts.
+     */
+    private static class OverloadWriter {
+        private final ByteBuffer buffer;
+        private final int[] from = new int[3];
+        private final int[] to = new int[3];
+        private int areas;
+        private int area;
+        private int pos;
+
+        OverloadWriter(final ByteBuffer inBuffer) {
+            buffer = inBuffer;
+        }
+
+        void addArea(final int inFrom, final int inTo) {
+            from[areas] = inFrom;
+            to[areas] = inTo;
+            if (areas++ == 0) {
+                pos = inFrom;
+            }
+        }
+
+        void write(final int code, final byte[] value) {
+            int offset = 0;
+            do {
+                final int remaining = value.length - offset;
+                int room = to[area] - pos - 2;
+                while (room < 0 || (room == 0 && remaining > 0)
+                        || (offset == 0 && value.length <= 255 && room < remaining && fitsInNextArea(remaining))) {
+                    // short options are moved whole to the next field, long ones split
+                    nextArea();
+                    room = to[area] - pos - 2;
+                }
+                final int length = Math.min(Math.min(255, remaining), room);
+                buffer.put(pos++, (byte) code);
+                buffer.put(pos++, (byte) length);
+                for (int i = 0; i < length; i++) {
+                    buffer.put(pos++, value[offset + i]);
+                }
+                offset += length;
+            } while (offset < value.length);
+        }
+
+        /** Ends the current field; returns the number of fields used. */
+        int finish() {
+            buffer.put(pos++, (byte) 255);
+            if (area == 0) {
+                buffer.position(pos);
+            }
+            return area + 1;
+        }
+
+        private boolean fitsInNextArea(final int length) {
+            return area + 1 < areas && to[area + 1] - from[area + 1] - 2 >= length;
+        }
+
+        private void nextArea() {
+            if (area + 1 >= areas) {
+                throw new BufferOverflowException();
+            }
+            buffer.put(pos++, (byte) 255);
+            if (area == 0) {
+                buffer.position(pos);
+            }
+            pos = from[++area];
+        }
     }
 
     /**
-     *  Prints the options linked list: For testing only.
+     *  Prints the options table: For testing only.
      */
     public void printList() {
-        System.out.println(optionsTable.toString());
+        final StringBuilder sb = new StringBuilder("{");
+        for (int code = 0; code < optionsTable.length; code++) {
+            if (optionsTable[code] != null) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(code).append('=').append(Arrays.toString(optionsTable[code]));
+            }
+        }
+        System.out.println(sb.append('}'));
+    }
+
+    /**
+     * Options table whose methods all synchronize on the table itself.
+     */
+    private static class SynchronizedDHCPOptions extends DHCPOptions {
+        public synchronized DHCPOptions copy() {
+            return super.copy();
+        }
+
+        public synchronized void removeOption(final byte entryCode) {
+            super.removeOption(entryCode);
+        }
+
+        public synchronized boolean contains(final byte entryCode) {
+            return super.contains(entryCode);
+        }
+
+        public synchronized boolean isEmpty() {
+            return super.isEmpty();
+        }
+
+        public synchronized byte[] getOption(final byte entryCode) {
+            return super.getOption(entryCode);
+        }
+
+        public synchronized void setOption(final byte entryCode, final byte[] value) {
+            super.setOption(entryCode, value);
+        }
+
+        public synchronized void clear() {
+            super.clear();
+        }
+
+        public synchronized void decodeFrom(final ByteBuffer buffer) throws MalformedPacketException {
+            super.decodeFrom(buffer);
+        }
+
+        synchronized void decodeOverloadedArea(final ByteBuffer buffer) throws MalformedPacketException {
+            super.decodeOverloadedArea(buffer);
+        }
+
+        public synchronized int getEncodedLength() {
+            return super.getEncodedLength();
+        }
+
+        public synchronized void encodeTo(final ByteBuffer buffer) {
+            super.encodeTo(buffer);
+        }
+
+        synchronized void encodeOverloaded(final ByteBuffer buffer, final int start, final int maxLength,
+                final boolean useFile, final boolean useSname) {
+            super.encodeOverloaded(buffer, start, maxLength, useFile, useSname);
+        }
+
+        public synchronized void printList() {
+            super.printList();
+        }
     }
 }
@@ -0,0 +1,127 @@
+package org.opennms.jdhcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This interface decides from a few fixed offsets of a raw datagram
+ * whether it is worth decoding, so traffic a listener does not care about,
+ * such as other clients' replies on a shared port, is dropped before any
+ * decode work or allocation.  Install one with setFilter() on a DHCPSocket
+ * or DHCPChannel; rejected datagrams are reported to the metrics with
+ * packetFiltered().
+ * <p>
+ * Filters are called on the receiving thread for every datagram, so they
+ * must be thread-safe and cheap.  The static methods build filters for
+ * the common checks, which and() combines, and DHCPXidFilter keeps only
+ * the datagrams of pending transactions.  For example, to decode nothing
+ * but DHCP replies:
+ * <pre>
+ * channel.setFilter(DHCPPacketFilter.and(DHCPPacketFilter.op(2), DHCPPacketFilter.magicCookie()));
+ * </pre>
+ * @see DHCPMetrics#packetFiltered(int)
+ */
+public interface DHCPPacketFilter {
+
+    /**
+     * Decides whether or not to decode a datagram.
+     * @param packet the datagram, between the buffer's position and limit;
+     *        read it with absolute gets and leave position and limit as
+     *        they are
+     * @return true to decode the datagram, false to drop it
+     */
+    boolean accept(ByteBuffer packet);
+
+    /**
+     * Accepts datagrams with the given op code: 1 for BOOTREQUEST, 2 for
+     * BOOTREPLY.
+     * @param inOp the op code
+     */
+    static DHCPPacketFilter op(final int inOp) {
+        final byte op = (byte) inOp;
+        return new DHCPPacketFilter() {
+            public boolean accept(final ByteBuffer packet) {
+                return packet.remaining() > 0 && packet.get(packet.position()) == op;
+            }
+        };
+    }
+
+    /**
+     * Accepts datagrams with the given hardware type and address length,
+     * such as 1 and 6 for Ethernet.
+     * @param inHtype the hardware type
+     * @param inHlen the hardware address length
+     */
+    static DHCPPacketFilter hardware(final int inHtype, final int inHlen) {
+        final byte htype = (byte) inHtype;
+        final byte hlen = (byte) inHlen;
+        return new DHCPPacketFilter() {
+            public boolean accept(final ByteBuffer packet) {
+                final int start = packet.position();
+                return packet.remaining() > 2 && packet.get(start + 1) == htype && packet.get(start + 2) == hlen;
+            }
+        };
+    }
+
+    /**
+     * Accepts DHCP messages: datagrams long enough for the BOOTP header
+     * with the magic cookie at offset 236.  Plain BOOTP messages without
+     * options are dropped.
+     */
+    static DHCPPacketFilter magicCookie() {
+        return new DHCPPacketFilter() {
+            public boolean accept(final ByteBuffer packet) {
+                final int start = packet.position();
+                return packet.remaining() >= 240
+                        && packet.get(start + 236) == (byte) 0x63 && packet.get(start + 237) == (byte) 0x82
+                        && packet.get(start + 238) == (byte) 0x53 && packet.get(start + 239) == (byte) 0x63;
+            }
+        };
+    }
+
+    /**
+     * Accepts datagrams whose client hardware address starts with the
+     * given bytes, for example to follow one client.
+     * @param inChaddr the client hardware address; copied
+     * @param inLength number of bytes to compare, at most 16
+     */
+    static DHCPPacketFilter chaddr(final byte[] inChaddr, final int inLength) {
+        if (inLength < 0 || inLength > 16 || inLength > inChaddr.length) {
+            throw new IllegalArgumentException("Between 0 and 16 bytes of the address can be compared.");
+        }
+        final byte[] chaddr = Arrays.copyOf(inChaddr, inLength);
+        return new DHCPPacketFilter() {
+            public boolean accept(final ByteBuffer packet) {
+                final int start = packet.position();
+                if (packet.remaining() < 28 + chaddr.length) {
+                    return false;
+                }
+                for (int i = 0; i < chaddr.length; i++) {
+                    if (packet.get(start + 28 + i) != chaddr[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Accepts datagrams every one of the given filters accepts, asking
+     * them in order and stopping at the first that rejects.
+     * @param inFilters the filters
+     */
+    static DHCPPacketFilter and(final DHCPPacketFilter... inFilters) {
+        final DHCPPacketFilter[] filters = inFilters.clone();
+        return new DHCPPacketFilter() {
+            public boolean accept(final ByteBuffer packet) {
+                for (final DHCPPacketFilter filter : filters) {
+                    if (!filter.accept(packet)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,385 @@
+package org.opennms.jdhcp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class traces the datagrams a DHCPSocket or DHCPChannel sends and
+ * receives to a pcap file, for a look at the bytes actually exchanged.
+ * Install it with setTap(); without a tap the socket only pays for a null
+ * check per datagram.
+ * <p>
+ * The I/O thread copies each datagram into a slot of a bounded lock-free
+ * ring and returns; it never waits for the file.  If the ring is full the
+ * datagram is dropped from the trace and counted.  A background thread
+ * drains the ring into the file, adding an IPv4 and UDP header to every
+ * datagram so Wireshark and DHCPCaptureReader read it as raw IP
+ * (LINKTYPE_RAW), with nanosecond timestamps.
+ * <p>
+ * When the file reaches its size limit it is renamed to name.1, an
+ * existing name.1 to name.2 and so on, the oldest beyond the file count is
+ * deleted, and a new file is started.
+ * @see DHCPCaptureReader
+ */
+public class DHCPPacketTap implements Closeable {
+    /** Default number of datagrams the ring holds. */
+    public static final int DEFAULT_CAPACITY = 4096;
+    /** Default size in bytes at which the file is rotated. */
+    public static final long DEFAULT_FILE_SIZE = 64L << 20;
+    /** Default number of files kept, counting the one being written. */
+    public static final int DEFAULT_FILE_COUNT = 4;
+
+    private static final int PCAP_NANOS = 0xA1B23C4D;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int SNAPLEN = 65535;
+    private static final int HEADERS = 16 + 20 + 8;	// record, IPv4 and UDP headers
+    private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final File file;
+    private final long fileSize;
+    private final int fileCount;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();	// next slot to claim
+    private long head;				// next slot to drain, writer thread only
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final long epochOffset;		// epoch nanoseconds minus System.nanoTime()
+    private final ByteBuffer out = ByteBuffer.allocate(256 << 10).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread writer;
+    private FileChannel channel;
+    private long written;			// bytes in the current file
+    private volatile IOException failure;
+    private volatile boolean running = true;
+
+    /**
+     * Starts tracing to a file with the default ring size and rotation.
+     * @param inFile the pcap file to write
+     */
+    public DHCPPacketTap(final File inFile) throws IOException {
+        this(inFile, DEFAULT_CAPACITY, DEFAULT_FILE_SIZE, DEFAULT_FILE_COUNT);
+    }
+
+    /**
+     * Starts tracing to a file.
+     * @param inFile the pcap file to write
+     * @param inCapacity number of datagrams the ring holds, rounded up to a power of two
+     * @param inFileSize size in bytes at which the file is rotated
+     * @param inFileCount number of files kept, counting the one being written
+     */
+    public DHCPPacketTap(final File inFile, final int inCapacity, final long inFileSize, final int inFileCount) throws IOException {
+        if (inCapacity <= 0 || inCapacity > 1 << 20) {
+            throw new IllegalArgumentException("The ring must hold between 1 and 2^20 datagrams.");
+        }
+        if (inFileCount < 1) {
+            throw new IllegalArgumentException("At least one file must be kept.");
+        }
+        file = inFile;
+        fileSize = inFileSize;
+        fileCount = inFileCount;
+        int capacity = 1;
+        while (capacity < inCapacity) {
+            capacity <<= 1;
+        }
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(i);
+        }
+        mask = capacity - 1;
+        epochOffset = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        open();
+        writer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "DHCPPacketTap-" + inFile.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Returns the file being written. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the number of datagrams written to the trace. */
+    public long getCaptured() {
+        return captured.sum();
+    }
+
+    /** Returns the number of datagrams dropped because the ring was full. */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the error that stopped the writer, or null if it is running
+     * or was closed normally.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops tracing: datagrams already in the ring are written and the
+     * file is closed.
+     */
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Copies a datagram into the ring; never blocks.
+     * @param data the datagram
+     * @param offset index of its first byte
+     * @param length its length
+     * @param source source IPv4 address as an int in network order
+     * @param sourcePort source UDP port
+     * @param destination destination IPv4 address as an int in network order
+     * @param destinationPort destination UDP port
+     */
+    void record(final byte[] data, final int offset, final int length, final int source, final int sourcePort, final int destination, final int destinationPort) {
+        final Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+        final int copied = slot.fill(length);
+        System.arraycopy(data, offset, slot.data, 0, copied);
+        publish(slot, source, sourcePort, destination, destinationPort);
+    }
+
+    /**
+     * Copies the datagram between a buffer's position and limit into the
+     * ring; never blocks.  The buffer's position is unchanged on return.
+     * @see #record(byte[], int, int, int, int, int, int)
+     */
+    void record(final ByteBuffer data, final int source, final int sourcePort, final int destination, final int destinationPort) {
+        final Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+        final int position = data.position();
+        final int copied = slot.fill(data.remaining());
+        data.get(slot.data, 0, copied);
+        data.position(position);
+        publish(slot, source, sourcePort, destination, destinationPort);
+    }
+
+    /**
+     * Converts an address for a synthetic IPv4 header; anything but an
+     * IPv4 address becomes 0.0.0.0.
+     */
+    static int toInt(final InetAddress inAddress) {
+        return inAddress instanceof Inet4Address ? Inet4Addresses.toInt(inAddress.getAddress()) : 0;
+    }
+
+    /**
+     * Claims the next free slot of the ring.
+     * @return the slot, or null if the ring is full
+     */
+    private Slot claim() {
+        for (;;) {
+            final long claimed = tail.get();
+            final Slot slot = slots[(int) claimed & mask];
+            final long lag = slot.sequence - claimed;
+            if (lag < 0) {
+                dropped.increment();	// the writer has not drained this slot yet
+                return null;
+            }
+            if (lag == 0 && tail.compareAndSet(claimed, claimed + 1)) {
+                return slot;
+            }
+            // another thread claimed it first
+        }
+    }
+
+    private void publish(final Slot slot, final int source, final int sourcePort, final int destination, final int destinationPort) {
+        slot.timestamp = epochOffset + System.nanoTime();
+        slot.source = source;
+        slot.sourcePort = sourcePort;
+        slot.destination = destination;
+        slot.destinationPort = destinationPort;
+        slot.sequence = slot.sequence + 1;	// hands the slot to the writer
+    }
+
+    /**
+     * Drains the ring into the file until closed, parking briefly when it
+     * is empty.
+     */
+    private void drainLoop() {
+        try {
+            for (;;) {
+                final boolean stopping = !running;
+                if (drain() == 0) {
+                    flush();
+                    if (stopping) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK);
+                }
+            }
+        } catch (final IOException e) {
+            failure = e;
+            running = false;
+        } finally {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                //NOSONAR
+            }
+        }
+    }
+
+    /**
+     * Writes every published slot.
+     * @return the number of datagrams written
+     */
+    private int drain() throws IOException {
+        int count = 0;
+        for (;;) {
+            final Slot slot = slots[(int) head & mask];
+            if (slot.sequence != head + 1) {
+                return count;
+            }
+            writeRecord(slot);
+            slot.sequence = head + slots.length;	// free for the next lap
+            head++;
+            count++;
+            captured.increment();
+        }
+    }
+
+    private void writeRecord(final Slot slot) throws IOException {
+        final int length = slot.length;
+        final int recordLength = HEADERS - 16 + length;
+        if (written + 16 + recordLength > fileSize && written > 24) {
+            rotate();
+        }
+        if (out.remaining() < 16 + recordLength) {
+            flush();
+        }
+        // record header, in the writer's byte order
+        out.putInt((int) (slot.timestamp / 1000000000L));
+        out.putInt((int) (slot.timestamp % 1000000000L));
+        out.putInt(recordLength);
+        out.putInt(slot.original + HEADERS - 16);
+
+        // IPv4 and UDP headers, in network order
+        final int ip = out.position();
+        out.order(ByteOrder.BIG_ENDIAN);
+        out.putShort((short) 0x4500);
+        out.putShort((short) (slot.original + 28));
+        out.putInt(0x00004000);			// id 0, don't fragment
+        out.putShort((short) 0x4011);		// TTL 64, UDP
+        out.putShort((short) 0);
+        out.putInt(slot.source);
+        out.putInt(slot.destination);
+        out.putShort(ip + 10, checksum(ip));
+        out.putShort((short) slot.sourcePort);
+        out.putShort((short) slot.destinationPort);
+        out.putShort((short) (slot.original + 8));
+        out.putShort((short) 0);			// no UDP checksum
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(slot.data, 0, length);
+        written += 16 + recordLength;
+    }
+
+    private short checksum(final int ip) {
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += out.getShort(ip + i) & 0xFFFF;
+        }
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum += sum >>> 16;
+        return (short) ~sum;
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private void rotate() throws IOException {
+        flush();
+        channel.close();
+        new File(file.getPath() + "." + (fileCount - 1)).delete();
+        for (int i = fileCount - 2; i >= 0; i--) {
+            final File from = i == 0 ? file : new File(file.getPath() + "." + i);
+            if (from.exists() && !from.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                throw new IOException("Cannot rotate " + from + ".");
+            }
+        }
+        open();
+    }
+
+    /** Starts a new file with the pcap header. */
+    private void open() throws IOException {
+        channel = new FileOutputStream(file).getChannel();
+        out.putInt(PCAP_NANOS);
+        out.putShort((short) 2);
+        out.putShort((short) 4);
+        out.putInt(0);				// GMT
+        out.putInt(0);				// accuracy
+        out.putInt(SNAPLEN);
+        out.putInt(LINKTYPE_RAW);
+        written = 24;
+        flush();
+    }
+
+    /**
+     * One datagram of the ring.  A producer owns the slot between claim()
+     * and publish(); the writer owns it while sequence is one past its
+     * index in the ring.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        byte[] data = new byte[0];
+        int length;			// bytes captured
+        int original;			// length of the datagram
+        long timestamp;
+        int source;
+        int sourcePort;
+        int destination;
+        int destinationPort;
+
+        Slot(final long inSequence) {
+            sequence = inSequence;
+        }
+
+        /**
+         * Makes room for a datagram of the given length.
+         * @return the number of bytes to copy
+         */
+        int fill(final int inLength) {
+            original = inLength;
+            length = Math.min(inLength, SNAPLEN - 28);
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package org.opennms.jdhcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * This class is a small DHCP server: it answers DISCOVER with OFFER,
+ * REQUEST with ACK or NAK, and INFORM with ACK, handing out addresses from
+ * a DHCPAddressPool, and takes addresses back on RELEASE.  An address a
+ * client DECLINEs is quarantined in the pool rather than handed out again.  It
+ * is meant as a deterministic local stand-in for a real server in
+ * benchmarks and integration tests, on any port.
+ * <p>
+ * One thread receives requests in batches with DHCPSocket.receiveBatch(),
+ * answers every request of a batch and sends the replies with sendAll(),
+ * so the receive lock and system call overhead are paid per batch
+ * rather than per packet.  A reply that cannot be sent is counted by the
+ * socket's metrics and does not hold back the rest of the batch.  The
+ * same thread sweeps the pool once per lease time, so leases that are not
+ * renewed expire.  Requests and replies are leased from a
+ * DHCPMessagePool and released once the batch is sent, so a busy
+ * responder reuses the same messages rather than creating new ones.
+ * <p>
+ * With a DHCPLeaseJournal, every ACK, RELEASE and DECLINE is journaled,
+ * and the replies of a batch are only sent once the journal has made the
+ * batch durable, so one force to disk covers the whole batch.
+ * <p>
+ * Replies to relayed requests go to the relay agent (giaddr) on the DHCP
+ * server port.  All other replies go back to the address and port the
+ * request came from, which is what a client on loopback or on another port
+ * expects; the responder never broadcasts.
+ * @see DHCPAddressPool
+ * @see DHCPLeaseJournal
+ */
+public class DHCPResponder implements Closeable, Runnable {
+    /**
+     * Default lease time in seconds
+     */
+    public static final int DEFAULT_LEASE_TIME = 3600;
+
+    private static final int BATCH_SIZE = 64;
+    private static final long POLL_TIMEOUT = 100;	// ms between checks for close()
+
+    private final DHCPSocket socket;
+    private final DHCPAddressPool pool;
+    private final DHCPMessagePool messages = new DHCPMessagePool(BATCH_SIZE * 2);
+    private final int serverId;
+    private volatile byte[][] options = new byte[256][];	// copied on write
+    private volatile int leaseTime = DEFAULT_LEASE_TIME;
+    private volatile boolean running = true;
+    private volatile DHCPLeaseJournal journal;
+    private long ticket;	// latest journal record of the batch, responder thread only
+    private Thread thread;
+
+    /**
+     * Creates a responder listening on a port on all local addresses.
+     * @param inPort the port to answer on
+     * @param inPool the addresses to hand out
+     * @param inServerId the server identifier (option 54) to answer with
+     */
+    public DHCPResponder(final int inPort, final DHCPAddressPool inPool, final InetAddress inServerId) throws SocketException {
+        this(new DHCPSocket(inPort), inPool, inServerId);
+    }
+
+    /**
+     * Creates a responder on an existing socket, which it closes when it
+     * is closed.  The socket's message pool is replaced by the responder's.
+     * @param inSocket the socket to answer on
+     * @param inPool the addresses to hand out
+     * @param inServerId the server identifier (option 54) to answer with
+     */
+    public DHCPResponder(final DHCPSocket inSocket, final DHCPAddressPool inPool, final InetAddress inServerId) {
+        socket = inSocket;
+        socket.setMessagePool(messages);
+        pool = inPool;
+        serverId = Inet4Addresses.toInt(inServerId);
+    }
+
+    /**
+     * Sets the lease time offered and acknowledged; T1 and T2 are half and
+     * seven eighths of it.
+     * @param inSeconds the lease time in seconds
+     */
+    public void setLeaseTime(final int inSeconds) {
+        leaseTime = inSeconds;
+    }
+
+    /** Returns the lease time in seconds. */
+    public int getLeaseTime() {
+        return leaseTime;
+    }
+
+    /**
+     * Sets an option sent in every OFFER and ACK, for example the subnet
+     * mask (1), routers (3) or domain name servers (6).
+     * @param inOptNum option number
+     * @param inOptionData option data, or null to stop sending the option
+     */
+    public synchronized void setOption(final int inOptNum, final byte[] inOptionData) {
+        final byte[][] copy = options.clone();
+        copy[inOptNum & 0xFF] = inOptionData;
+        options = copy;
+    }
+
+    /**
+     * Journals the responder's leases.  Leases the journal holds as bound
+     * or declined and not yet expired are first restored to the pool, so
+     * call this before start().
+     * @param inJournal the journal, or null to stop journaling
+     * @return the number of leases restored
+     */
+    public int setJournal(final DHCPLeaseJournal inJournal) {
+        final int[] restored = new int[1];
+        if (inJournal != null) {
+            final long now = System.currentTimeMillis();
+            inJournal.forEach(new Consumer<DHCPLeaseJournal.Lease>() {
+                public void accept(final DHCPLeaseJournal.Lease inLease) {
+                    if (inLease.getExpiry() <= now) {
+                        return;
+                    }
+                    if (inLease.getState() == DHCPLeaseJournal.State.BOUND
+                            && pool.request(inLease.getChaddr(), inLease.getHlen(), inLease.getYiaddr())
+                            || inLease.getState() == DHCPLeaseJournal.State.DECLINED
+                            && pool.quarantine(inLease.getYiaddr())) {
+                        restored[0]++;
+                    }
+                }
+            });
+        }
+        journal = inJournal;
+        return restored[0];
+    }
+
+    /** Returns the journal, or null if leases are not journaled. */
+    public DHCPLeaseJournal getJournal() {
+        return journal;
+    }
+
+    /** Returns the socket the responder answers on. */
+    public DHCPSocket getSocket() {
+        return socket;
+    }
+
+    /** Returns the pool addresses are handed out from. */
+    public DHCPAddressPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Starts answering on a new daemon thread.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "DHCPResponder-" + socket.getLocalPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Answers requests on the calling thread until close() is called.
+     */
+    public void run() {
+        final List<DHCPMessage> replies = new ArrayList<DHCPMessage>(BATCH_SIZE);
+        List<DHCPMessage> requests = null;
+        long lastSweep = System.nanoTime();
+        while (running) {
+            final long now = System.nanoTime();
+            if (now - lastSweep >= TimeUnit.SECONDS.toNanos(leaseTime)) {
+                pool.sweep();
+                lastSweep = now;
+            }
+            try {
+                requests = socket.receiveBatch(BATCH_SIZE, POLL_TIMEOUT);
+                for (final DHCPMessage request : requests) {
+                    final DHCPMessage reply = respond(request);
+                    if (reply != null) {
+                        replies.add(reply);
+                    }
+                }
+                final DHCPLeaseJournal target = journal;
+                if (ticket != 0L && target != null) {
+                    final long last = ticket;
+                    ticket = 0L;
+                    target.awaitDurable(last);
+                }
+                if (!replies.isEmpty()) {
+                    socket.sendAll(replies);
+                }
+            } catch (final IOException e) {
+                if (socket.isClosed()) {
+                    running = false;
+                }
+            } catch (final InterruptedException e) {
+                running = false;
+            } finally {
+                recycle(replies);
+                if (requests != null) {
+                    recycle(requests);
+                    requests = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands a batch of messages back to the message pool and empties the list.
+     */
+    private void recycle(final List<DHCPMessage> inMessages) {
+        for (final DHCPMessage message : inMessages) {
+            messages.release(message);
+        }
+        inMessages.clear();
+    }
+
+    /**
+     * Stops answering and closes the socket.
+     */
+    public void close() {
+        running = false;
+        socket.close();
+        final Thread worker;
+        synchronized (this) {
+            worker = thread;
+        }
+        if (worker != null && worker != Thread.currentThread()) {
+            try {
+                worker.join(POLL_TIMEOUT * 10);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Works out the reply to one request.
+     * @param inRequest a decoded request
+     * @return the reply, or null if the request gets none
+     */
+    DHCPMessage respond(final DHCPMessage inRequest) {
+        if (inRequest.getOp() != 1) {	// only BOOTREQUESTs are answered
+            return null;
+        }
+        final byte[] chaddr = inRequest.getChaddr();
+        final int hlen = inRequest.getHlen();
+        final boolean forUs = inRequest.getInet4Option(54, serverId) == serverId;
+        int requested = inRequest.getInet4Option(50, 0);
+
+        switch (inRequest.getMessageType()) {
+        case DHCPMessage.DISCOVER:
+            final int offered = pool.offer(chaddr, hlen, requested);
+            return offered == 0 ? null : reply(inRequest, DHCPMessage.OFFER, offered);
+        case DHCPMessage.REQUEST:
+            if (!forUs) {	// the client took another server's offer
+                pool.release(chaddr, hlen);
+                return null;
+            }
+            if (requested == 0) {	// RENEWING or REBINDING
+                requested = Inet4Addresses.toInt(inRequest.getCiaddr());
+            }
+            if (!pool.request(chaddr, hlen, requested)) {
+                return reply(inRequest, DHCPMessage.NAK, 0);
+            }
+            if (!journal(chaddr, hlen, DHCPLeaseJournal.State.BOUND, requested, 1)) {
+                return null;	// not durable, let the client retry
+            }
+            return reply(inRequest, DHCPMessage.ACK, requested);
+        case DHCPMessage.INFORM:
+            return reply(inRequest, DHCPMessage.ACK, 0);
+        case DHCPMessage.RELEASE:
+            if (forUs) {
+                pool.release(chaddr, hlen);
+                journal(chaddr, hlen, DHCPLeaseJournal.State.RELEASED, 0, 1);
+            }
+            return null;
+        case DHCPMessage.DECLINE:
+            if (forUs) {
+                final int declined = pool.decline(chaddr, hlen);
+                if (declined != 0) {	// held for two sweeps, so journal it as long
+                    journal(chaddr, hlen, DHCPLeaseJournal.State.DECLINED, declined, 2);
+                }
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Appends a lease record to the journal, if there is one.
+     * @param leases how many lease times the record lasts
+     * @return false if the journal failed
+     */
+    private boolean journal(final byte[] chaddr, final int hlen, final DHCPLeaseJournal.State state, final int yiaddr, final int leases) {
+        final DHCPLeaseJournal target = journal;
+        if (target == null) {
+            return true;
+        }
+        try {
+            ticket = target.append(chaddr, hlen, state, yiaddr, System.currentTimeMillis() + leases * TimeUnit.SECONDS.toMillis(leaseTime));
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private DHCPMessage reply(final DHCPMessage inRequest, final int inType, final int inYiaddr) {
+        final DHCPMessage reply = messages.lease();
+        final byte[] giaddr = inRequest.getGiaddr();
+        if (Inet4Addresses.toInt(giaddr) != 0) {
+            try {
+                reply.setDestination(InetAddress.getByAddress(giaddr));
+            } catch (final IOException e) {
+                messages.release(reply);
+                return null;
+            }
+            reply.setPort(DHCPMessage.SERVER_PORT);
+        } else {
+            reply.setDestination(inRequest.getDestination());
+            reply.setPort(inRequest.getPort());
+        }
+        // the setters copy, so nothing is shared with the request, which goes back to the pool first
+        reply.setOp((byte) 2);
+        reply.setHtype(inRequest.getHtype());
+        reply.setHlen(inRequest.getHlen());
+        reply.setXid(inRequest.getXid());
+        reply.setFlags(inRequest.getFlags());
+        reply.setGiaddr(giaddr);
+        reply.setChaddr(inRequest.getChaddr());
+        if (inType == DHCPMessage.ACK) {
+            reply.setCiaddr(inRequest.getCiaddr());
+        }
+        if (inYiaddr != 0) {
+            Inet4Addresses.toBytes(inYiaddr, reply.getYiaddr());
+        }
+        reply.setMessageType(inType);
+        reply.setInet4Option(54, serverId);
+        if (inType == DHCPMessage.NAK) {
+            return reply;
+        }
+        if (inYiaddr != 0) {
+            final int lease = leaseTime;
+            reply.setIntOption(51, lease);
+            reply.setIntOption(58, lease / 2);
+            reply.setIntOption(59, lease * 7L / 8);
+        }
+        final byte[][] extra = options;
+        for (int code = 1; code < 255; code++) {
+            if (extra[code] != null) {
+                reply.setOption(code, extra[code]);
+            }
+        }
+        return reply;
+    }
+}
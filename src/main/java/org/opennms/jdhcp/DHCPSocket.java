@@ -3,11 +3,28 @@ package org.opennms.jdhcp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * This class represents a Socket for sending DHCP Messages
+ * <p>
+ * Sends take no lock: every send encodes into a buffer leased from the
+ * socket's BufferPool and writes its datagram straight to the socket, so
+ * any number of threads, platform or virtual, send in parallel without a
+ * buffer per thread, and a thread waiting in receive() holds up no one.
+ * Receives are serialized by a java.util.concurrent lock rather than a
+ * monitor, so virtual threads blocked on the socket do not pin their
+ * carrier threads.  Instead of calling receive() from several threads,
+ * startReceiver() dedicates one thread to receiving and passes every
+ * message to a handler.
  * @author Jason Goldschmidt 
  * @see java.net.DatagramSocket
  */
@@ -16,6 +33,19 @@ import java.net.SocketException;
 public class DHCPSocket extends DatagramSocket  {
     protected static int sPACKETSIZE = 1500; // default MTU for ethernet
     private static final int DEFAULT_SO_TIMEOUT = 3000; // 3 second socket timeout
+    private static final int DEFAULT_POOL_CAPACITY = 4;
+    private static final int DRAIN_SO_TIMEOUT = 1; // wait while draining a batch
+
+    private final ReentrantLock receiveLock = new ReentrantLock();
+    private volatile int packetSize = sPACKETSIZE;	// MTU for this socket
+    private volatile BufferPool bufferPool = new BufferPool(sPACKETSIZE, DEFAULT_POOL_CAPACITY);
+    private volatile DHCPMessagePool messagePool;
+    private volatile DHCPPacketFilter filter;
+    private final DatagramPacket incoming = new DatagramPacket(new byte[0], 0);
+    private volatile DHCPMetrics metrics = DHCPMetrics.NOOP;
+    private volatile DHCPPacketTap tap;
+    private int tapAddress;	// local address and port for traced datagrams
+    private int tapPort;
 
     /** 
      * Constructor for creating DHCPSocket on a specific port on the local machine. 
@@ -28,35 +58,226 @@ public class DHCPSocket extends DatagramSocket  {
     }
 
     /**
-     * Sets the Maximum Transfer Unit for the UDP DHCP Packets to be set.
-     * Default is 1500, MTU for Ethernet
+     * Sets the default Maximum Transfer Unit for sockets created after
+     * this call.  Default is 1500, MTU for Ethernet
      * @param inSize integer representing desired MTU
+     * @deprecated the MTU is now set per socket with {@link #setPacketSize(int)}
      */
 
+    @Deprecated
     public static void setMTU(final int inSize) {
         sPACKETSIZE = inSize;
     }
 
     /**
-     * Returns the set MTU for this socket
-     * @return the Maximum Transfer Unit set for this socket
+     * Returns the default MTU for new sockets
+     * @return the Maximum Transfer Unit new sockets start with
      */
 
     public static int getMTU() {
         return sPACKETSIZE;
     }
 
+    /**
+     * Sets the Maximum Transfer Unit for this socket: the largest datagram
+     * it can receive.  The socket's buffer pool is replaced by one of the
+     * new size.
+     * @param inSize integer representing desired MTU
+     */
+
+    public void setPacketSize(final int inSize) {
+        receiveLock.lock();
+        try {
+            packetSize = inSize;
+            bufferPool = new BufferPool(inSize, DEFAULT_POOL_CAPACITY);
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the MTU for this socket
+     * @return the Maximum Transfer Unit set for this socket
+     */
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * Uses a caller supplied pool of heap buffers for receives, for example
+     * one shared by several sockets.  The pool's buffer size becomes the
+     * socket's MTU.
+     * @param inPool a pool of heap buffers
+     */
+
+    public void setBufferPool(final BufferPool inPool) {
+        if (inPool.isDirect()) {
+            throw new IllegalArgumentException("DHCPSocket needs a pool of heap buffers.");
+        }
+        receiveLock.lock();
+        try {
+            bufferPool = inPool;
+            packetSize = inPool.getBufferSize();
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the pool receive buffers are leased from.
+     */
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Leases the messages receiveBatch() and startReceiver() return from a
+     * pool instead of creating them.  Callers hand every message back with
+     * getMessagePool().release() once done with it.
+     * @param inPool the pool, or null to create every message
+     */
+
+    public void setMessagePool(final DHCPMessagePool inPool) {
+        messagePool = inPool;
+    }
+
+    /**
+     * Returns the pool received messages are leased from, or null if they
+     * are created.
+     */
+
+    public DHCPMessagePool getMessagePool() {
+        return messagePool;
+    }
+
+    /**
+     * Drops received datagrams the filter rejects before they are decoded.
+     * receive() returns false for them, as for malformed packets, and
+     * receiveBatch() and startReceiver() skip them.  receiveBuffer() does
+     * not decode, so it returns every datagram.
+     * @param inFilter the filter, or null to decode every datagram
+     */
+
+    public void setFilter(final DHCPPacketFilter inFilter) {
+        filter = inFilter;
+    }
+
+    /**
+     * Returns the packet filter, or null if every datagram is decoded.
+     */
+
+    public DHCPPacketFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Reports the socket's sends, receives, decode failures and timeouts
+     * to the given metrics.
+     * @param inMetrics the metrics, or DHCPMetrics.NOOP to stop reporting
+     */
+
+    public void setMetrics(final DHCPMetrics inMetrics) {
+        metrics = inMetrics == null ? DHCPMetrics.NOOP : inMetrics;
+    }
+
+    /**
+     * Returns the metrics the socket reports to.
+     */
+
+    public DHCPMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Traces every datagram the socket sends and receives, whether or not
+     * it decodes, to a packet tap.
+     * @param inTap the tap, or null to stop tracing
+     */
+
+    public void setTap(final DHCPPacketTap inTap) {
+        tapAddress = DHCPPacketTap.toInt(getLocalAddress());
+        tapPort = getLocalPort();
+        tap = inTap;
+    }
+
+    /**
+     * Returns the packet tap, or null if the socket is not traced.
+     */
+
+    public DHCPPacketTap getTap() {
+        return tap;
+    }
+
     /**
      * Sends a DHCPMessage object to a predefined host.
      * @param inMessage well-formed DHCPMessage to be sent to a server
      */
 
-    public synchronized void send(final DHCPMessage inMessage) throws IOException {
-        final byte[] data = inMessage.externalize();
-        final InetAddress dest = inMessage.getDestination();
+    public void send(final DHCPMessage inMessage) throws IOException {
+        final BufferPool pool = bufferPool;
+        final ByteBuffer buffer = encode(pool, inMessage);
+        try {
+            final DatagramPacket outgoing = new DatagramPacket(buffer.array(), buffer.arrayOffset(), buffer.position(),
+                    inMessage.getDestination(), inMessage.getPort());
+            send(outgoing); // send outgoing message
+            traceSent(outgoing);
+            metrics.messageSent(inMessage.messageType(), outgoing.getLength());
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends a compiled message to its destination and port.  The encoding
+     * is sent as it is, so nothing is encoded or allocated; the message may
+     * be patched again once this method returns.
+     * @param inMessage the compiled message
+     */
+
+    public void send(final DHCPCompiledMessage inMessage) throws IOException {
+        final DatagramPacket outgoing = inMessage.getPacket();
+        send(outgoing);
+        traceSent(outgoing);
+        metrics.messageSent(inMessage.getMessageType(), outgoing.getLength());
+    }
+
+    /**
+     * Sends several DHCPMessage objects back to back, each to its own
+     * destination.  Every message is encoded into one buffer leased from
+     * the socket's pool.  A message that cannot be encoded or sent is reported to the
+     * metrics with sendFailed() and does not stop the others.
+     * @param inMessages well-formed DHCPMessages to be sent
+     * @throws IOException the first failure, once every message was tried
+     */
 
-        final DatagramPacket outgoing = new DatagramPacket(data, data.length, dest, inMessage.getPort());
-        send(outgoing); // send outgoing message
+    public void sendAll(final Collection<DHCPMessage> inMessages) throws IOException {
+        final BufferPool pool = bufferPool;
+        final DatagramPacket outgoing = new DatagramPacket(new byte[0], 0);
+        IOException failure = null;
+        for (final DHCPMessage message : inMessages) {
+            ByteBuffer buffer = null;
+            try {
+                buffer = encode(pool, message);
+                outgoing.setData(buffer.array(), buffer.arrayOffset(), buffer.position());
+                outgoing.setAddress(message.getDestination());
+                outgoing.setPort(message.getPort());
+                send(outgoing);
+                traceSent(outgoing);
+                metrics.messageSent(message.messageType(), outgoing.getLength());
+            } catch (final IOException e) {
+                metrics.sendFailed(message.messageType());
+                if (failure == null) {
+                    failure = e;
+                }
+            } finally {
+                pool.release(buffer);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     /** 
@@ -66,16 +287,297 @@ public class DHCPSocket extends DatagramSocket  {
      * @param outMessage DHCPMessage object to receive new message into
      */
 
-    public synchronized boolean receive(final DHCPMessage outMessage) {
+    public boolean receive(final DHCPMessage outMessage) {
+        receiveLock.lock();
         try {
-            final DatagramPacket incoming = new DatagramPacket(new byte[sPACKETSIZE], sPACKETSIZE);
-            receive(incoming); // block on receive for SO_TIMEOUT
+            final ByteBuffer buffer = receiveDatagram(true);
+            if (buffer == null) {
+                return false;
+            }
+            if (rejected(buffer)) {
+                bufferPool.release(buffer);
+                return false;
+            }
+            final int length = buffer.limit();	// the buffer may be leased again once released
+            try {
+                outMessage.decodeFrom(buffer);
+            } catch (final MalformedPacketException e) {
+                metrics.decodeFailed(e.getReason(), length);
+                return false;
+            } catch (final Exception e) {
+                return false;
+            } finally {
+                bufferPool.release(buffer);
+            }
+            metrics.messageReceived(outMessage.messageType(), length);
+            return true;
+        } finally {
+            receiveLock.unlock();
+        }
+    }
 
-            outMessage.internalize(incoming.getData());
-        } catch (final Exception e) {
+    /**
+     * Receives up to inMax DHCP Messages.  Waits up to inTimeout for the
+     * first datagram, then drains the datagrams already queued on the
+     * socket without waiting for more.  The receive lock is taken once and
+     * every datagram is received into the same leased buffer.  Malformed
+     * and filtered packets are dropped.
+     * <p>
+     * DatagramSocket cannot tell whether a datagram is queued, so unless
+     * inMax messages arrive, the drain ends with a receive that times out
+     * after a millisecond.  That costs the millisecond and the JDK's
+     * SocketTimeoutException, about a kilobyte of garbage, once per batch
+     * rather than once per message; a larger inMax, or a DHCPChannel,
+     * which never blocks, spends less of both under load.
+     * @param inMax largest number of messages to return
+     * @param inTimeout milliseconds to wait for the first message; 0 waits forever
+     * @return the received messages, empty if a timeout occurs
+     */
+
+    public List<DHCPMessage> receiveBatch(final int inMax, final long inTimeout) throws IOException {
+        final List<DHCPMessage> messages = new ArrayList<DHCPMessage>(Math.min(inMax, 64));
+        receiveLock.lock();
+        try {
+            final BufferPool pool = bufferPool;
+            final ByteBuffer buffer = pool.lease();
+            final int soTimeout = getSoTimeout();
+            boolean received = false;
+            try {
+                setSoTimeout((int) Math.min(Integer.MAX_VALUE, inTimeout));
+                while (messages.size() < inMax) {
+                    incoming.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                    try {
+                        receive(incoming);
+                    } catch (final SocketTimeoutException e) {
+                        if (!received) {
+                            metrics.receiveTimedOut();
+                        }
+                        break;
+                    }
+                    if (isClosed()) {
+                        break;	// woken by close(), not a datagram
+                    }
+                    if (!received) {
+                        received = true;
+                        setSoTimeout(DRAIN_SO_TIMEOUT);
+                    }
+                    buffer.clear().limit(incoming.getLength());
+                    traceReceived();
+                    if (rejected(buffer)) {
+                        continue;
+                    }
+                    final DHCPMessage message = newMessage();
+                    try {
+                        messages.add(message.decodeFrom(buffer));
+                        metrics.messageReceived(message.messageType(), incoming.getLength());
+                    } catch (final MalformedPacketException e) {
+                        // drop it, as receive() does
+                        recycle(message);
+                        metrics.decodeFailed(e.getReason(), incoming.getLength());
+                    }
+                }
+            } finally {
+                pool.release(buffer);
+                if (!isClosed()) {	// a closed socket throws, hiding what ended the batch
+                    setSoTimeout(soTimeout);
+                }
+            }
+        } finally {
+            receiveLock.unlock();
+        }
+        return messages;
+    }
+
+    /**
+     * Receives a datagram into a buffer leased from the socket's pool,
+     * without decoding it, for example to wrap it in a DHCPMessageView.
+     * The buffer's position is 0 and its limit is the datagram's length.
+     * The caller must hand it back with getBufferPool().release() once done.
+     * @return the received datagram, or null if a timeout occurs
+     */
+
+    public ByteBuffer receiveBuffer() {
+        receiveLock.lock();
+        try {
+            final ByteBuffer buffer = receiveDatagram(true);
+            if (buffer != null) {
+                metrics.messageReceived(0, buffer.limit());	// not decoded, type unknown
+            }
+            return buffer;
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a daemon thread that receives every message arriving on the
+     * socket and passes it to a handler, until the socket is closed.
+     * Messages are handed over one at a time on that thread, as soon as
+     * each is decoded; a handler that throws loses only its message.
+     * Other threads may go on sending, but should no longer receive.
+     * @param inHandler called for every well-formed message; the message's
+     *        destination and port are set to its sender, so it can be
+     *        replied to as it is
+     * @return the receiver thread
+     */
+    public Thread startReceiver(final Consumer<DHCPMessage> inHandler) {
+        final Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                dispatch(inHandler);
+            }
+        }, "DHCPSocket-" + getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+        return receiver;
+    }
+
+    /**
+     * Receives and hands over messages until the socket is closed.  Idle
+     * timeouts are not reported to the metrics, since no one is waiting.
+     */
+    private void dispatch(final Consumer<DHCPMessage> inHandler) {
+        while (!isClosed()) {
+            final DHCPMessage message;
+            receiveLock.lock();
+            try {
+                final ByteBuffer buffer = receiveDatagram(false);
+                if (buffer == null) {
+                    continue;
+                }
+                if (rejected(buffer)) {
+                    bufferPool.release(buffer);
+                    continue;
+                }
+                final int length = buffer.limit();	// the buffer may be leased again once released
+                message = newMessage();
+                try {
+                    message.decodeFrom(buffer);
+                } catch (final MalformedPacketException e) {
+                    recycle(message);
+                    metrics.decodeFailed(e.getReason(), length);
+                    continue;
+                } finally {
+                    bufferPool.release(buffer);
+                }
+                metrics.messageReceived(message.messageType(), length);
+            } finally {
+                receiveLock.unlock();
+            }
+            try {
+                inHandler.accept(message);
+            } catch (final RuntimeException e) {
+                // a failing handler must not stop the receiver
+            }
+        }
+    }
+
+    /**
+     * Reports whether or not the packet filter rejects a received
+     * datagram, counting it if so.
+     */
+    private boolean rejected(final ByteBuffer buffer) {
+        final DHCPPacketFilter current = filter;
+        if (current == null || current.accept(buffer)) {
             return false;
         }
+        metrics.packetFiltered(buffer.remaining());
         return true;
     }
 
+    /**
+     * Returns an empty message addressed to the sender of the incoming
+     * datagram; the receive lock must be held.
+     */
+    private DHCPMessage newMessage() {
+        final DHCPMessagePool pool = messagePool;
+        if (pool == null) {
+            return new DHCPMessage(incoming.getAddress(), incoming.getPort());
+        }
+        final DHCPMessage message = pool.lease();
+        message.setDestination(incoming.getAddress());
+        message.setPort(incoming.getPort());
+        return message;
+    }
+
+    /**
+     * Hands a message that could not be decoded back to the pool, if any.
+     */
+    private void recycle(final DHCPMessage inMessage) {
+        final DHCPMessagePool pool = messagePool;
+        if (pool != null) {
+            pool.release(inMessage);
+        }
+    }
+
+    /**
+     * Receives a datagram into a leased buffer; the receive lock must be held.
+     * @param inCountTimeout whether or not to report a timeout to the metrics
+     */
+    private ByteBuffer receiveDatagram(final boolean inCountTimeout) {
+        final BufferPool pool = bufferPool;
+        final ByteBuffer buffer = pool.lease();
+        try {
+            incoming.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+            receive(incoming); // block on receive for SO_TIMEOUT
+        } catch (final SocketTimeoutException e) {
+            pool.release(buffer);
+            if (inCountTimeout) {
+                metrics.receiveTimedOut();
+            }
+            return null;
+        } catch (final Exception e) {
+            pool.release(buffer);
+            return null;
+        }
+        if (isClosed()) {
+            pool.release(buffer);	// woken by close(), not a datagram
+            return null;
+        }
+        buffer.limit(incoming.getLength());
+        traceReceived();
+        return buffer;
+    }
+
+    /**
+     * Copies an outgoing datagram to the tap.
+     */
+    private void traceSent(final DatagramPacket outgoing) {
+        final DHCPPacketTap current = tap;
+        if (current != null) {
+            current.record(outgoing.getData(), outgoing.getOffset(), outgoing.getLength(), tapAddress, tapPort,
+                    DHCPPacketTap.toInt(outgoing.getAddress()), outgoing.getPort());
+        }
+    }
+
+    /**
+     * Copies the incoming datagram to the tap; the receive lock must be held.
+     */
+    private void traceReceived() {
+        final DHCPPacketTap current = tap;
+        if (current != null) {
+            current.record(incoming.getData(), incoming.getOffset(), incoming.getLength(),
+                    DHCPPacketTap.toInt(incoming.getAddress()), incoming.getPort(), tapAddress, tapPort);
+        }
+    }
+
+    /**
+     * Encodes a message into a buffer leased from a pool, or into a buffer
+     * of its own when the pool's buffers are smaller than the message's
+     * maximum size.  Release the buffer to the pool once the
+     * datagram is sent.
+     * @return the buffer, with the encoding from 0 to its position
+     */
+    private static ByteBuffer encode(final BufferPool pool, final DHCPMessage inMessage) throws IOException {
+        final int maxSize = inMessage.getMaxMessageSize();
+        final ByteBuffer buffer = pool.getBufferSize() < maxSize ? ByteBuffer.allocate(maxSize) : pool.lease();
+        buffer.limit(maxSize);
+        try {
+            inMessage.encodeTo(buffer);
+        } catch (final BufferOverflowException e) {
+            pool.release(buffer);
+            throw new IOException("DHCP options do not fit in a " + maxSize + " byte message.");
+        }
+        return buffer;
+    }
+
 }
@@ -0,0 +1,180 @@
+package org.opennms.jdhcp;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a DHCPMetrics implementation that keeps counters in
+ * memory: messages sent and received by message type, bytes, send
+ * failures, decode failures by reason, filtered datagrams, timeouts,
+ * and a LatencyHistogram of reply times for every server a DHCPClient
+ * has sent to.  One instance may be shared by several sockets, channels
+ * and clients.
+ * @see DHCPMetrics
+ */
+public class DHCPStatistics implements DHCPMetrics {
+    private static final MalformedPacketException.Reason[] REASONS =
+            MalformedPacketException.Reason.values();
+
+    private final LongAdder[] sent = newCounters(256);
+    private final LongAdder[] received = newCounters(256);
+    private final LongAdder[] decodeFailures = newCounters(REASONS.length);
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder receiveTimeouts = new LongAdder();
+    private final LongAdder requestTimeouts = new LongAdder();
+    private final ConcurrentHashMap<InetAddress, LatencyHistogram> latencies =
+            new ConcurrentHashMap<InetAddress, LatencyHistogram>();
+
+    public void messageSent(final int inMessageType, final int inLength) {
+        sent[inMessageType & 0xFF].increment();
+        bytesSent.add(inLength);
+    }
+
+    public void sendFailed(final int inMessageType) {
+        sendFailures.increment();
+    }
+
+    public void messageReceived(final int inMessageType, final int inLength) {
+        received[inMessageType & 0xFF].increment();
+        bytesReceived.add(inLength);
+    }
+
+    public void decodeFailed(final MalformedPacketException.Reason inReason, final int inLength) {
+        decodeFailures[inReason.ordinal()].increment();
+        bytesReceived.add(inLength);
+    }
+
+    public void packetFiltered(final int inLength) {
+        filtered.increment();
+        bytesReceived.add(inLength);
+    }
+
+    public void receiveTimedOut() {
+        receiveTimeouts.increment();
+    }
+
+    public void requestTimedOut(final InetAddress inServer) {
+        requestTimeouts.increment();
+    }
+
+    public void replyReceived(final InetAddress inServer, final long inNanos) {
+        LatencyHistogram histogram = latencies.get(inServer);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(inServer, server -> new LatencyHistogram());
+        }
+        histogram.record(inNanos);
+    }
+
+    /**
+     * Returns the number of messages of one type sent.
+     * @param inMessageType the message type, or 0 for messages without one
+     */
+    public long getSent(final int inMessageType) {
+        return sent[inMessageType & 0xFF].sum();
+    }
+
+    /**
+     * Returns the number of messages sent.
+     */
+    public long getSent() {
+        return sum(sent);
+    }
+
+    /** Returns the number of messages that could not be encoded or sent. */
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    /**
+     * Returns the number of messages of one type received.
+     * @param inMessageType the message type, or 0 for messages without one
+     */
+    public long getReceived(final int inMessageType) {
+        return received[inMessageType & 0xFF].sum();
+    }
+
+    /**
+     * Returns the number of messages received and decoded.
+     */
+    public long getReceived() {
+        return sum(received);
+    }
+
+    /**
+     * Returns the number of packets dropped for one reason.
+     * @param inReason what was wrong with them
+     */
+    public long getDecodeFailures(final MalformedPacketException.Reason inReason) {
+        return decodeFailures[inReason.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of packets dropped because they could not be decoded.
+     */
+    public long getDecodeFailures() {
+        return sum(decodeFailures);
+    }
+
+    /** Returns the number of packets the packet filter dropped before decoding. */
+    public long getFiltered() {
+        return filtered.sum();
+    }
+
+    /** Returns the number of bytes sent. */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /** Returns the number of bytes received, including dropped packets. */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /** Returns the number of blocking receives that timed out. */
+    public long getReceiveTimeouts() {
+        return receiveTimeouts.sum();
+    }
+
+    /** Returns the number of DHCPClient requests that got no reply. */
+    public long getRequestTimeouts() {
+        return requestTimeouts.sum();
+    }
+
+    /**
+     * Returns the reply times of requests sent to one server.
+     * @param inServer the address requests were sent to
+     * @return the server's histogram, or null if no reply came from it yet
+     */
+    public LatencyHistogram getLatency(final InetAddress inServer) {
+        return latencies.get(inServer);
+    }
+
+    /**
+     * Returns the reply time histograms of every server, by address.
+     */
+    public Map<InetAddress, LatencyHistogram> getLatencies() {
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    private static LongAdder[] newCounters(final int inCount) {
+        final LongAdder[] counters = new LongAdder[inCount];
+        for (int i = 0; i < inCount; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static long sum(final LongAdder[] inCounters) {
+        long total = 0;
+        for (final LongAdder counter : inCounters) {
+            total += counter.sum();
+        }
+        return total;
+    }
+}
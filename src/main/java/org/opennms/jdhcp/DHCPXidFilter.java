@@ -0,0 +1,107 @@
+package org.opennms.jdhcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class is a packet filter that accepts only datagrams whose xid
+ * belongs to a pending transaction, so a client sharing a port with other
+ * clients decodes nothing but candidate replies.  Each xid is counted, so
+ * several transactions may use one xid, for instance with different
+ * client hardware addresses, and the xid stays pending until all of them
+ * are removed.
+ * <p>
+ * Lookups, which happen for every received datagram, take no lock: they
+ * read the table optimistically and only read again under the lock if a
+ * transaction was added or removed meanwhile.  Adding and removing
+ * transactions take the lock exclusively.
+ * @see DHCPClient
+ */
+public class DHCPXidFilter implements DHCPPacketFilter {
+    private final LongMap counts = new LongMap();	// xid, tagged non-zero, to its number of transactions
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Adds a pending transaction.
+     * @param inXid its transaction id
+     */
+    public void add(final int inXid) {
+        final long key = key(inXid);
+        final long stamp = lock.writeLock();
+        try {
+            counts.put(key, counts.get(key) + 1);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a pending transaction added with add().
+     * @param inXid its transaction id
+     */
+    public void remove(final int inXid) {
+        final long key = key(inXid);
+        final long stamp = lock.writeLock();
+        try {
+            final long count = counts.get(key);
+            if (count > 1) {
+                counts.put(key, count - 1);
+            } else if (count == 1) {
+                counts.remove(key);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reports whether or not a transaction with the given xid is pending.
+     * @param inXid the transaction id
+     */
+    public boolean contains(final int inXid) {
+        final long key = key(inXid);
+        final long optimistic = lock.tryOptimisticRead();
+        if (optimistic != 0L) {
+            try {
+                final boolean pending = counts.get(key) != 0L;
+                if (lock.validate(optimistic)) {
+                    return pending;
+                }
+            } catch (final RuntimeException e) {
+                // the table was resized under us, read it again under the lock
+            }
+        }
+        final long stamp = lock.readLock();
+        try {
+            return counts.get(key) != 0L;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Returns the number of distinct pending xids. */
+    public int size() {
+        final long stamp = lock.readLock();
+        try {
+            return counts.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean accept(final ByteBuffer packet) {
+        if (packet.remaining() < 8) {
+            return false;
+        }
+        final int start = packet.position();
+        return contains((packet.get(start + 4) & 0xFF) << 24 | (packet.get(start + 5) & 0xFF) << 16
+                | (packet.get(start + 6) & 0xFF) << 8 | packet.get(start + 7) & 0xFF);
+    }
+
+    /**
+     * Tags an xid so that xid 0 is a valid key.
+     */
+    private static long key(final int inXid) {
+        return 1L << 32 | (inXid & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,223 @@
+package org.opennms.jdhcp;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is a hashed timing wheel for scheduling large numbers of
+ * short-lived timeouts, such as the retransmissions and deadlines of
+ * pending DHCP transactions.
+ * <p>
+ * A single worker thread advances the wheel one bucket per tick and runs
+ * the tasks that have expired in that bucket.  Scheduling only queues the
+ * timeout for the worker, and cancelling only marks it, so neither wakes
+ * the worker or allocates more than the Timeout handle itself.  Timeouts
+ * fire on the first tick at or after their deadline, so the tick duration
+ * is the resolution of the wheel.  Tasks run on the worker thread and must
+ * not block.
+ */
+public class HashedTimingWheel implements Closeable {
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * Creates and starts a wheel with a 10 ms tick and 512 buckets.
+     */
+    public HashedTimingWheel() {
+        this(10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Creates and starts a wheel.
+     * @param inTickDuration time between ticks
+     * @param inUnit the unit of inTickDuration
+     * @param inWheelSize number of buckets, rounded up to a power of two
+     */
+    public HashedTimingWheel(final long inTickDuration, final TimeUnit inUnit, final int inWheelSize) {
+        if (inTickDuration <= 0 || inWheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive.");
+        }
+        tickNanos = inUnit.toNanos(inTickDuration);
+        int size = 1;
+        while (size < inWheelSize) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        startTime = System.nanoTime();
+
+        worker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, "HashedTimingWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run once the delay has passed.
+     * @param task the task to run on the wheel's worker thread
+     * @param delay time from now until the task runs
+     * @param unit the unit of delay
+     * @return a handle that can cancel the timeout
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("HashedTimingWheel is closed.");
+        }
+        final Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the worker thread; timeouts that have not expired never will.
+     */
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            final long deadline = (tick + 1) * tickNanos;
+            final long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (final InterruptedException e) {
+                    continue;	// close() interrupts us
+                }
+            }
+            transferAdded();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        // bounded, so a flood of new timeouts cannot stall the wheel
+        for (int i = 0; i < 100000; i++) {
+            final Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() != INIT) {
+                continue;
+            }
+            final long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A handle for a scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;		// nanoseconds since the wheel started
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(final Runnable inTask, final long inDeadline) {
+            task = inTask;
+            deadline = inDeadline;
+        }
+
+        /**
+         * Cancels the task if it has not run yet.
+         * @return true if the task will now never run
+         */
+        public boolean cancel() {
+            return state.compareAndSet(INIT, CANCELLED);
+        }
+
+        /** Report whether the timeout was cancelled. */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /** Report whether the task has run. */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        void expire() {
+            if (state.compareAndSet(INIT, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    // a failing task must not stop the wheel
+                }
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts, only touched by the worker thread.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(final Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(final long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.state.get() != INIT) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(final Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.next = null;
+            timeout.prev = null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.opennms.jdhcp;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * This class converts IPv4 addresses between InetAddresses, the four
+ * octets of the wire format, and ints in network order such as 0x0a000001
+ * for 10.0.0.1, which the codec, the address pool and the capture tools
+ * use to avoid an object per address.
+ */
+final class Inet4Addresses {
+
+    private Inet4Addresses() {
+    }
+
+    /**
+     * Converts an IPv4 address to an int in network order.
+     * @throws IllegalArgumentException if the address is not IPv4
+     */
+    static int toInt(final InetAddress inAddress) {
+        if (!(inAddress instanceof Inet4Address)) {
+            throw new IllegalArgumentException(inAddress + " is not an IPv4 address.");
+        }
+        return toInt(inAddress.getAddress());
+    }
+
+    /**
+     * Converts four octets in network order to an int, or 0 if there are
+     * fewer than four.
+     */
+    static int toInt(final byte[] inAddress) {
+        if (inAddress == null || inAddress.length < 4) {
+            return 0;
+        }
+        return (inAddress[0] & 0xFF) << 24 | (inAddress[1] & 0xFF) << 16 | (inAddress[2] & 0xFF) << 8 | inAddress[3] & 0xFF;
+    }
+
+    /**
+     * Converts an int in network order to four octets.
+     */
+    static byte[] toBytes(final int inAddress) {
+        final byte[] address = new byte[4];
+        toBytes(inAddress, address);
+        return address;
+    }
+
+    /**
+     * Converts an int in network order into the first four octets of an array.
+     */
+    static void toBytes(final int inAddress, final byte[] outAddress) {
+        outAddress[0] = (byte) (inAddress >>> 24);
+        outAddress[1] = (byte) (inAddress >>> 16);
+        outAddress[2] = (byte) (inAddress >>> 8);
+        outAddress[3] = (byte) inAddress;
+    }
+
+    /**
+     * Formats an int in network order as a dotted quad.
+     */
+    static String toString(final int inAddress) {
+        return (inAddress >>> 24) + "." + (inAddress >>> 16 & 0xFF) + "." + (inAddress >>> 8 & 0xFF) + "." + (inAddress & 0xFF);
+    }
+}
@@ -0,0 +1,105 @@
+package org.opennms.jdhcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a log-linear histogram of latencies in nanoseconds.  Every
+ * power of two is split into 16 linear buckets, so a recorded value is
+ * known to within 1/16 (about 6%) over the whole range of a long, in 960
+ * counters.  Recording is a few shifts and one atomic increment, takes no
+ * lock and allocates nothing, so any number of threads may record at once.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one value; negative values are recorded as 0.
+     * @param inNanos the latency in nanoseconds
+     */
+    public void record(final long inNanos) {
+        final long value = Math.max(0L, inNanos);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // another thread raised the maximum, look again
+        }
+    }
+
+    /** Returns the number of values recorded. */
+    public long getCount() {
+        return total.get();
+    }
+
+    /** Returns the largest value recorded, or 0 if none was. */
+    public long getMax() {
+        return max.get();
+    }
+
+    /** Returns the mean of the values recorded, or 0 if none was. */
+    public double getMean() {
+        final long count = total.get();
+        return count == 0 ? 0.0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Returns a value that the given percentage of the recorded values do
+     * not exceed: the upper bound of the bucket holding that percentile,
+     * but never more than getMax().
+     * @param inPercentile from 0 to 100
+     * @return the value at the percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(final double inPercentile) {
+        final long count = total.get();
+        if (count == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(Math.min(100.0, inPercentile) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears every bucket.  Values recorded while resetting may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        total.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKETS << 1) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    static long highestValueIn(final int index) {
+        if (index < SUB_BUCKETS << 1) {
+            return index;
+        }
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        final long lowest = (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
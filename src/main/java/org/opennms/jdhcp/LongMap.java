@@ -0,0 +1,127 @@
+package org.opennms.jdhcp;
+
+/**
+ * This class is an open addressing hash table from non-zero long keys to
+ * non-zero long values, with linear probing and deletion by backward
+ * shifting.  It keeps no object per entry, so tables of millions of
+ * entries cost two arrays.  It is not thread-safe.
+ */
+final class LongMap {
+    private long[] keys = new long[16];
+    private long[] values = new long[16];
+    private int count;
+
+    /**
+     * Returns the value of a key, or 0 if the key is absent.
+     */
+    long get(final long key) {
+        final int mask = keys.length - 1;
+        for (int slot = slot(key, mask); keys[slot] != 0L; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Sets the value of a key.
+     * @return the previous value, or 0 if the key was absent
+     */
+    long put(final long key, final long value) {
+        final int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != 0L) {
+            if (keys[slot] == key) {
+                final long previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++count > keys.length >>> 1) {
+            resize();
+        }
+        return 0L;
+    }
+
+    /**
+     * Removes a key.
+     * @return its value, or 0 if the key was absent
+     */
+    long remove(final long key) {
+        final int mask = keys.length - 1;
+        for (int slot = slot(key, mask); keys[slot] != 0L; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                final long value = values[slot];
+                shiftBack(slot, mask);
+                count--;
+                return value;
+            }
+        }
+        return 0L;
+    }
+
+    /** Returns the number of entries. */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of slots, for iterating with keyAt() and
+     * valueAt().  Removing the entry in a slot may move a later entry into
+     * it, so callers removing while iterating should look at the slot again.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /** Returns the key in a slot, or 0 if the slot is empty. */
+    long keyAt(final int slot) {
+        return keys[slot];
+    }
+
+    /** Returns the value in a slot. */
+    long valueAt(final int slot) {
+        return values[slot];
+    }
+
+    private void shiftBack(int gap, final int mask) {
+        for (int slot = (gap + 1) & mask; keys[slot] != 0L; slot = (slot + 1) & mask) {
+            final int home = slot(keys[slot], mask);
+            // move the entry into the gap unless its home lies between the gap and it
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+        }
+        keys[gap] = 0L;
+        values[gap] = 0L;
+    }
+
+    private void resize() {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new long[oldKeys.length << 1];
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0L) {
+                int slot = slot(oldKeys[i], mask);
+                while (keys[slot] != 0L) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int slot(final long key, final int mask) {
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ mixed >>> 32) & mask;
+    }
+}
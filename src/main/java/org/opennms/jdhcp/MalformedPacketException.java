@@ -3,19 +3,51 @@ package org.opennms.jdhcp;
 public class MalformedPacketException extends Exception {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * What was wrong with the packet.
+     */
+    public enum Reason {
+        /** the packet ends inside the fixed BOOTP header */
+        SHORT_HEADER,
+        /** an option's length runs past the end of the packet */
+        TRUNCATED_OPTIONS,
+        /** the packet could not be read at all */
+        UNREADABLE,
+        /** anything else */
+        OTHER
+    }
+
+    private final Reason reason;
+
     public MalformedPacketException() {
         super();
+        reason = Reason.OTHER;
     }
     
     public MalformedPacketException(final String message) {
         super(message);
+        reason = Reason.OTHER;
     }
     
     public MalformedPacketException(final Throwable cause) {
         super(cause);
+        reason = Reason.OTHER;
     }
     
     public MalformedPacketException(final String message, final Throwable cause) {
         super(message, cause);
+        reason = Reason.OTHER;
+    }
+
+    public MalformedPacketException(final Reason inReason, final String message, final Throwable cause) {
+        super(message, cause);
+        reason = inReason;
+    }
+
+    /**
+     * Returns what was wrong with the packet.
+     */
+    public Reason getReason() {
+        return reason;
     }
 }
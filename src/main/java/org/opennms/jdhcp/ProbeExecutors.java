@@ -0,0 +1,44 @@
+package org.opennms.jdhcp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class creates executors for running DHCP probes written in the
+ * blocking style, one task per transaction, for example with
+ * {@link DHCPClient#exchange(DHCPMessage)}.
+ * <p>
+ * The jar is a multi-release jar: on Java 21 and later every task runs on
+ * its own virtual thread, so tens of thousands of probes can block at once.
+ * This version, used on older JVMs, falls back to a cached pool of daemon
+ * platform threads.
+ */
+public final class ProbeExecutors {
+
+    private ProbeExecutors() {
+    }
+
+    /**
+     * Returns an executor that starts a new thread for every task.
+     * @return a new executor; shut it down when done with it
+     */
+    public static ExecutorService newProbeExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "DHCPProbe-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Report whether probes run on virtual threads.
+     */
+    public static boolean isVirtual() {
+        return false;
+    }
+}
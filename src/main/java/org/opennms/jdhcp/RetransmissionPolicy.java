@@ -0,0 +1,58 @@
+package org.opennms.jdhcp;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class describes when an unanswered DHCP request is sent again.
+ * The delay before the first retransmission is doubled for each one after
+ * it, up to a maximum, and every delay is randomized by a uniform jitter.
+ * @see DHCPClient
+ */
+public class RetransmissionPolicy {
+    /**
+     * The RFC 2131 section 4.1 schedule: 4, 8, 16, 32 and then 64 seconds,
+     * each randomized by plus or minus one second.
+     */
+    public static final RetransmissionPolicy RFC2131 = new RetransmissionPolicy(4000, 64000, 1000);
+
+    /**
+     * Never retransmit; wait for the reply until the deadline.
+     */
+    public static final RetransmissionPolicy NONE = new RetransmissionPolicy(Long.MAX_VALUE, Long.MAX_VALUE, 0);
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final long jitter;
+
+    /**
+     * Creates a retransmission policy; all times are in milliseconds.
+     * @param inInitialDelay delay before the first retransmission
+     * @param inMaxDelay largest delay between retransmissions
+     * @param inJitter largest amount each delay is randomly moved by
+     */
+    public RetransmissionPolicy(final long inInitialDelay, final long inMaxDelay, final long inJitter) {
+        if (inInitialDelay <= 0 || inMaxDelay < inInitialDelay || inJitter < 0 || inJitter >= inInitialDelay) {
+            throw new IllegalArgumentException("Delays must be positive, with the jitter smaller than the initial delay.");
+        }
+        initialDelay = inInitialDelay;
+        maxDelay = inMaxDelay;
+        jitter = inJitter;
+    }
+
+    /**
+     * Returns the delay, in milliseconds, to wait after the given send
+     * before sending the request again.
+     * @param attempt the number of times the request has been sent, from 1
+     * @return the randomized delay
+     */
+    public long getDelay(final int attempt) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay = delay > maxDelay / 2 ? maxDelay : delay * 2;
+        }
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+        }
+        return delay;
+    }
+}
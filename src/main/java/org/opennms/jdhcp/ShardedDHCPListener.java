@@ -0,0 +1,93 @@
+package org.opennms.jdhcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.function.IntFunction;
+
+/**
+ * This class listens on one UDP port with several shards, each a
+ * DHCPEventLoop with its own thread, receive buffer, channel and listener.
+ * The channels are bound with SO_REUSEPORT, so on Linux the kernel hashes
+ * incoming flows across them and receive, decode and dispatch scale with
+ * the number of shards.  Each shard's listener is created by a factory,
+ * so handler state can be kept per shard without any locking.
+ * <p>
+ * SO_REUSEPORT needs Java 9 or later and a platform that supports it.
+ * @see DHCPEventLoop
+ */
+public class ShardedDHCPListener implements Closeable {
+    private final DHCPEventLoop[] loops;
+    private final DHCPChannel[] channels;
+
+    /**
+     * Creates and starts one shard per available processor.
+     * @param inAddress local address and port to listen on; port 0 picks a free port
+     * @param inListenerFactory creates the listener for each shard, given the shard number
+     */
+    public ShardedDHCPListener(final InetSocketAddress inAddress, final IntFunction<DHCPMessageListener> inListenerFactory) throws IOException {
+        this(inAddress, Runtime.getRuntime().availableProcessors(), inListenerFactory);
+    }
+
+    /**
+     * Creates and starts the shards.
+     * @param inAddress local address and port to listen on; port 0 picks a free port
+     * @param inShards number of shards
+     * @param inListenerFactory creates the listener for each shard, given the shard number
+     * @throws UnsupportedOperationException if SO_REUSEPORT is not available
+     */
+    public ShardedDHCPListener(final InetSocketAddress inAddress, final int inShards, final IntFunction<DHCPMessageListener> inListenerFactory) throws IOException {
+        if (inShards <= 0) {
+            throw new IllegalArgumentException("At least one shard is needed.");
+        }
+        loops = new DHCPEventLoop[inShards];
+        channels = new DHCPChannel[inShards];
+        InetSocketAddress address = inAddress;
+        try {
+            for (int shard = 0; shard < inShards; shard++) {
+                loops[shard] = new DHCPEventLoop();
+                channels[shard] = loops[shard].bind(address, inListenerFactory.apply(shard), true);
+                // every shard binds the port the first one got
+                address = new InetSocketAddress(inAddress.getAddress(), channels[0].getLocalPort());
+            }
+        } catch (final IOException e) {
+            close();
+            throw e;
+        } catch (final RuntimeException e) {
+            close();
+            throw e;
+        }
+        for (int shard = 0; shard < inShards; shard++) {
+            loops[shard].start("DHCPEventLoop-shard-" + shard);
+        }
+    }
+
+    /** Returns the number of shards. */
+    public int getShardCount() {
+        return loops.length;
+    }
+
+    /**
+     * Returns the channel of one shard, for example to send from it.
+     * @param inShard the shard number
+     */
+    public DHCPChannel getChannel(final int inShard) {
+        return channels[inShard];
+    }
+
+    /** Returns the port every shard is bound to. */
+    public int getLocalPort() {
+        return channels[0].getLocalPort();
+    }
+
+    /**
+     * Stops every shard and closes its channel.
+     */
+    public void close() {
+        for (final DHCPEventLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+}
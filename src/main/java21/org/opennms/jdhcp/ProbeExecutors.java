@@ -0,0 +1,34 @@
+package org.opennms.jdhcp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class creates executors for running DHCP probes written in the
+ * blocking style, one task per transaction, for example with
+ * {@link DHCPClient#exchange(DHCPMessage)}.
+ * <p>
+ * This is the Java 21 version from the multi-release jar: every task runs
+ * on its own virtual thread, so tens of thousands of probes can block at
+ * once while only a few carrier threads exist.
+ */
+public final class ProbeExecutors {
+
+    private ProbeExecutors() {
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for every task.
+     * @return a new executor; shut it down when done with it
+     */
+    public static ExecutorService newProbeExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("DHCPProbe-", 1).factory());
+    }
+
+    /**
+     * Report whether probes run on virtual threads.
+     */
+    public static boolean isVirtual() {
+        return true;
+    }
+}